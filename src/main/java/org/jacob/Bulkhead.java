@@ -0,0 +1,29 @@
+package org.jacob;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * バルクヘッド指定アノテーション.
+ * {@link JsonResponder} 実装クラスに @Bulkhead を付与すると、{@link RequestTranslater#add(String, Class)} で
+ * 登録した URI の処理は、指定した名前のバルクヘッド（{@link RequestTranslater#addBulkhead(String, int, int)} で登録）で実行される。<br/>
+ * <pre>
+ *  （使い方）
+ *
+ *      ＠Bulkhead("export")
+ *      public class ExportResponder implements JsonResponder{
+ *          ：
+ *
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Bulkhead{
+	/**
+	 * バルクヘッド名.
+	 * @return {@link RequestTranslater#addBulkhead(String, int, int)} で登録した名前
+	 */
+	String value();
+}
@@ -0,0 +1,184 @@
+package org.jacob;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * バルクヘッド実行スレッドプール. BulkheadExecutor
+ * <pre>
+ * URI毎に割り当てる、スレッド数と待ち行列の長さが上限付きのスレッドプール。
+ * 重いURIの処理がWebコンテナのスレッドを占有して、他のURIの応答を遅らせるのを防ぐ。
+ * 待ち行列が一杯の場合は受け付けず、RejectedExecutionException を発生する（JacobFilter は HTTP 503 を返す）。
+ * 優先度（priority、大きい方が優先）は受付の制御に使う。優先度の高いバルクヘッドで実行待ちが発生している間は、
+ * 優先度の低いバルクヘッドは空いているスレッドの分だけ受け付け、待ち行列には入れずに拒否する。
+ * 負荷が高い時に、優先度の低いURIから先に 503 で処理を減らして、優先度の高いURIにCPU等を回す。
+ * スレッドの優先度（Thread#setPriority）は使用しない。
+ * 分離の効果があるのは、Filter が非同期処理をサポート（web.xml で async-supported を true）している場合である。
+ * サポートしていない場合は、Webコンテナのスレッドが終了を待つので、同時実行数の上限にしかならない。
+ * 受付拒否件数（うち優先度による拒否件数）と待ち行列での待ち時間は、バルクヘッド毎に計測される。
+ * </pre>
+ */
+public final class BulkheadExecutor{
+	private final String name;
+	private final int threads;
+	private final int priority;
+	private final ThreadPoolExecutor executor;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private volatile List<BulkheadExecutor> higher = Collections.emptyList();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder queueWaitNanos = new LongAdder();
+	private final AtomicLong maxQueueWaitNanos = new AtomicLong();
+
+	/**
+	 * コンストラクタ.
+	 * @param name バルクヘッド名
+	 * @param threads スレッド数
+	 * @param queueDepth 待ち行列の長さ
+	 * @param priority 優先度、大きい方が優先
+	 */
+	BulkheadExecutor(String name, int threads, int queueDepth, int priority){
+		this.name = name;
+		this.threads = threads;
+		this.priority = priority;
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueDepth), r->{
+			Thread t = new Thread(r, "jacob-bulkhead-" + name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.AbortPolicy());
+	}
+	/**
+	 * 優先度の高いバルクヘッドの設定.
+	 * @param higher 自分より優先度の高いバルクヘッド
+	 */
+	void setHigherPriority(List<BulkheadExecutor> higher){
+		this.higher = higher;
+	}
+	/**
+	 * 処理の実行依頼.
+	 * @param command 実行する処理
+	 * @throws RejectedExecutionException 待ち行列が一杯、優先度の高いバルクヘッドに実行待ちがあり空きスレッドが無い、
+	 * または停止している場合
+	 */
+	void execute(Runnable command){
+		if (inFlight.get() >= threads && isHigherPriorityWaiting()){
+			shed.increment();
+			rejected.increment();
+			throw new RejectedExecutionException("bulkhead " + name + " shed for higher priority");
+		}
+		long queued = System.nanoTime();
+		inFlight.incrementAndGet();
+		waiting.incrementAndGet();
+		try{
+			executor.execute(()->{
+				waiting.decrementAndGet();
+				long wait = System.nanoTime() - queued;
+				queueWaitNanos.add(wait);
+				maxQueueWaitNanos.accumulateAndGet(wait, Math::max);
+				try{
+					command.run();
+				}finally{
+					inFlight.decrementAndGet();
+					completed.increment();
+				}
+			});
+		}catch(RejectedExecutionException e){
+			waiting.decrementAndGet();
+			inFlight.decrementAndGet();
+			rejected.increment();
+			throw e;
+		}
+	}
+	private boolean isHigherPriorityWaiting(){
+		for(BulkheadExecutor b:higher){
+			if (b.waiting.get() > 0) return true;
+		}
+		return false;
+	}
+	/**
+	 * 停止.
+	 */
+	void shutdown(){
+		executor.shutdownNow();
+	}
+	/**
+	 * バルクヘッド名.
+	 * @return バルクヘッド名
+	 */
+	public String getName(){
+		return name;
+	}
+	/**
+	 * 優先度.
+	 * @return 優先度、大きい方が優先
+	 */
+	public int getPriority(){
+		return priority;
+	}
+	/**
+	 * 受付拒否件数.
+	 * @return 待ち行列が一杯、または優先度により受け付けなかった件数
+	 */
+	public long getRejectedCount(){
+		return rejected.sum();
+	}
+	/**
+	 * 優先度による受付拒否件数.
+	 * @return 優先度の高いバルクヘッドの実行待ちにより受け付けなかった件数
+	 */
+	public long getShedCount(){
+		return shed.sum();
+	}
+	/**
+	 * 完了件数.
+	 * @return 実行を終了した件数
+	 */
+	public long getCompletedCount(){
+		return completed.sum();
+	}
+	/**
+	 * 実行中件数.
+	 * @return 実行中のスレッド数
+	 */
+	public int getActiveCount(){
+		return executor.getActiveCount();
+	}
+	/**
+	 * 待ち行列の件数.
+	 * @return 実行待ちの件数
+	 */
+	public int getQueueSize(){
+		return executor.getQueue().size();
+	}
+	/**
+	 * 待ち行列での待ち時間の合計（ナノ秒）
+	 * @return 待ち時間の合計
+	 */
+	public long getQueueWaitNanos(){
+		return queueWaitNanos.sum();
+	}
+	/**
+	 * 待ち行列での待ち時間の最大（ナノ秒）
+	 * @return 待ち時間の最大
+	 */
+	public long getMaxQueueWaitNanos(){
+		return maxQueueWaitNanos.get();
+	}
+	/* @see java.lang.Object#toString() */
+	@Override
+	public String toString(){
+		return "BulkheadExecutor[name=" + name + ", priority=" + priority + ", active=" + getActiveCount()
+		+ ", queued=" + getQueueSize() + ", completed=" + getCompletedCount() + ", rejected=" + getRejectedCount() + ", shed=" + getShedCount()
+		+ ", maxQueueWait=" + TimeUnit.NANOSECONDS.toMillis(getMaxQueueWaitNanos()) + "ms]";
+	}
+}
@@ -0,0 +1,179 @@
+package org.jacob;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * サーキットブレーカー. CircuitBreaker
+ * <pre>
+ * URI毎に、一定時間（window）内の失敗率を計測し、閾値を超えると一定時間（openTime）HTTP 503 で即座に応答する。
+ * 失敗は、例外の発生、HTTP status 500 以上（タイムアウトの 504 を含む）、処理時間が slowCall 以上のいずれかである。
+ * openTime 経過後、1件だけ試行し、成功すれば閉じ、失敗すれば再び openTime の間 503 を返す。
+ * {@link #allow()} が返す {@link Permit} を {@link #record(Permit, boolean, long)} に渡し、
+ * 試行中の状態を決めるのは試行の Permit の結果だけで、遮断前から実行中だった処理の結果は無視する。
+ * 状態遷移は CAS で行い、ロックを使用しない。
+ * JacobFilter の初期化パラメータ breakerFailureRate を指定した場合に、登録した全てのURIに生成される。
+ * </pre>
+ */
+public final class CircuitBreaker{
+	/** 状態 */
+	public enum State{
+		/** 通常 */
+		CLOSED,
+		/** 遮断中 */
+		OPEN,
+		/** 試行中 */
+		HALF_OPEN;
+	}
+	/**
+	 * 実行許可.
+	 * <pre>通常時の許可は共有のインスタンス、試行の許可は試行毎のインスタンスである。</pre>
+	 */
+	public static final class Permit{
+		private final boolean probe;
+		private Permit(boolean probe){
+			this.probe = probe;
+		}
+		/**
+		 * 試行判定.
+		 * @return true = 遮断後の試行
+		 */
+		public boolean isProbe(){
+			return probe;
+		}
+	}
+	private static final Permit CALL = new Permit(false);
+	private static final Status CLOSED = new Status(State.CLOSED, 0L, null);
+	private final double failureRate;
+	private final long minCalls;
+	private final long slowCallNanos;
+	private final long openNanos;
+	private final long windowNanos;
+	private final AtomicReference<Status> status = new AtomicReference<Status>(CLOSED);
+	private final AtomicReference<Window> window;
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * コンストラクタ.
+	 * @param failureRate 遮断する失敗率 0.0 ～ 1.0
+	 * @param minCalls 失敗率を判定する最少件数
+	 * @param slowCallMillis 失敗とみなす処理時間（ミリ秒）、0 以下は判定しない。
+	 * @param openMillis 遮断する時間（ミリ秒）
+	 * @param windowMillis 失敗率を計測する時間（ミリ秒）
+	 */
+	public CircuitBreaker(double failureRate, long minCalls, long slowCallMillis, long openMillis, long windowMillis){
+		this.failureRate = failureRate;
+		this.minCalls = minCalls;
+		this.slowCallNanos = slowCallMillis > 0L ? TimeUnit.MILLISECONDS.toNanos(slowCallMillis) : Long.MAX_VALUE;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		window = new AtomicReference<Window>(new Window(System.nanoTime()));
+	}
+	/**
+	 * 実行可否判定.
+	 * <pre>openTime 経過後は、最初の1件にだけ試行の Permit を返す。</pre>
+	 * @return Permit、遮断中は null
+	 */
+	public Permit allow(){
+		Status s = status.get();
+		if (s==CLOSED) return CALL;
+		if (s.state==State.OPEN && System.nanoTime() - s.openedAt >= openNanos){
+			Status probe = new Status(State.HALF_OPEN, s.openedAt, new Permit(true));
+			if (status.compareAndSet(s, probe)) return probe.probe;
+		}
+		rejected.increment();
+		return null;
+	}
+	/**
+	 * 実行結果の記録.
+	 * <pre>試行の Permit の結果で、閉じるか再び遮断する。
+	 * 通常時の Permit の結果は、閉じている間だけ失敗率に計上し、遮断中・試行中に終わった結果は無視する。</pre>
+	 * @param permit {@link #allow()} が返した Permit
+	 * @param failure true = 失敗
+	 * @param elapsedNanos 処理時間（ナノ秒）
+	 */
+	public void record(Permit permit, boolean failure, long elapsedNanos){
+		boolean failed = failure || elapsedNanos >= slowCallNanos;
+		long now = System.nanoTime();
+		Status s = status.get();
+		if (permit.probe){
+			if (s.probe != permit) return;
+			if (failed){
+				status.compareAndSet(s, new Status(State.OPEN, now, null));
+			}else{
+				window.set(new Window(now));
+				status.compareAndSet(s, CLOSED);
+			}
+			return;
+		}
+		if (s != CLOSED) return;
+		Window w = window.get();
+		if (now - w.start >= windowNanos){
+			Window next = new Window(now);
+			w = window.compareAndSet(w, next) ? next : window.get();
+		}
+		w.calls.increment();
+		if (!failed) return;
+		w.failures.increment();
+		long calls = w.calls.sum();
+		if (calls >= minCalls && w.failures.sum() >= failureRate * calls){
+			status.compareAndSet(CLOSED, new Status(State.OPEN, now, null));
+		}
+	}
+	/**
+	 * 試行の取り消し.
+	 * <pre>試行の Permit で実行できなかった場合に遮断中へ戻す。遮断時刻は変えないので、次の allow() で再び試行する。
+	 * 通常時の Permit の場合は何もしない。</pre>
+	 * @param permit {@link #allow()} が返した Permit
+	 */
+	void abandon(Permit permit){
+		if (!permit.probe) return;
+		Status s = status.get();
+		if (s.probe==permit) status.compareAndSet(s, new Status(State.OPEN, s.openedAt, null));
+	}
+	/**
+	 * 状態.
+	 * @return State
+	 */
+	public State getState(){
+		return status.get().state;
+	}
+	/**
+	 * 遮断件数.
+	 * @return 遮断して 503 を返した件数
+	 */
+	public long getRejectedCount(){
+		return rejected.sum();
+	}
+	/* @see java.lang.Object#toString() */
+	@Override
+	public String toString(){
+		Window w = window.get();
+		return "CircuitBreaker[state=" + getState() + ", calls=" + w.calls.sum() + ", failures=" + w.failures.sum()
+		+ ", rejected=" + getRejectedCount() + "]";
+	}
+
+	/**
+	 * 状態、遮断時刻、試行の Permit の組. 1回の CAS で遷移する。
+	 */
+	private static final class Status{
+		private final State state;
+		private final long openedAt;
+		private final Permit probe;
+		private Status(State state, long openedAt, Permit probe){
+			this.state = state;
+			this.openedAt = openedAt;
+			this.probe = probe;
+		}
+	}
+
+	private static final class Window{
+		private final long start;
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder failures = new LongAdder();
+		private Window(long start){
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package org.jacob;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * リクエストの処理期限. Deadline
+ * <pre>
+ * URI毎のタイムアウト（{@link RequestTranslater#add(String, Class, String, long)}、{@link Timeout}、
+ * または JacobFilter の初期化パラメータ timeout）を処理期限とし、リクエストヘッダ（デフォルト X-Request-Timeout、ミリ秒）が
+ * 短い場合はヘッダの値で短縮する。期限を過ぎると JacobFilter は JsonResponder の終了を待たずに HTTP 504 を返し、
+ * 実行中のスレッドに割込みをかける。バルクヘッドの無いURIでは、処理が戻るまでWebコンテナのスレッドは占有される。
+ * JsonResponder 実装は、下流の呼び出しのタイムアウトに残り時間を使用できる。
+ *
+ *    Deadline deadline = Deadline.current();
+ *    if (deadline != null){
+ *       connection.setReadTimeout((int)deadline.getRemainingMillis());
+ *    }
+ * </pre>
+ */
+public final class Deadline{
+	private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+	private final long timeoutNanos;
+	private final long expireNanos;
+
+	/**
+	 * コンストラクタ.
+	 * @param timeoutMillis 処理期限までの時間（ミリ秒）
+	 */
+	Deadline(long timeoutMillis){
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.expireNanos = System.nanoTime() + timeoutNanos;
+	}
+	/**
+	 * 実行中スレッドの処理期限.
+	 * @return Deadline、期限が無い場合は null
+	 */
+	public static Deadline current(){
+		return CURRENT.get();
+	}
+	/**
+	 * 実行スレッドへの割当.
+	 * @param deadline Deadline、null で割当解除
+	 */
+	static void attach(Deadline deadline){
+		if (deadline==null){
+			CURRENT.remove();
+		}else{
+			CURRENT.set(deadline);
+		}
+	}
+	/**
+	 * タイムアウト（ミリ秒）
+	 * @return 処理期限までの時間
+	 */
+	public long getTimeoutMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+	}
+	/**
+	 * 残り時間（ナノ秒）
+	 * @return 残り時間、期限を過ぎている場合は 0
+	 */
+	public long getRemainingNanos(){
+		return Math.max(0L, expireNanos - System.nanoTime());
+	}
+	/**
+	 * 残り時間（ミリ秒）
+	 * @return 残り時間、期限を過ぎている場合は 0
+	 */
+	public long getRemainingMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(getRemainingNanos());
+	}
+	/**
+	 * 期限切れ判定.
+	 * @return true = 期限を過ぎている
+	 */
+	public boolean isExpired(){
+		return expireNanos - System.nanoTime() <= 0L;
+	}
+}
@@ -13,6 +13,7 @@ import javax.servlet.ServletContext;
  */
 public abstract class JacobApplication{
 	private ServletContext servletContext;
+	private RequestTranslater requestTranslater;
 	/**
 	 * 初期化処理.
 	 * @return JsonResponder JSON応答インターフェース
@@ -32,9 +33,12 @@ public abstract class JacobApplication{
 		requestTranslater = new RequestTranslater(servletContext);
 	}
 
-	private static RequestTranslater requestTranslater;
 	/**
 	 * HTTPリクエストURI振り分けマッピング設定インスタンスの取得.
+	 * <pre>RequestTranslater は JacobApplication インスタンス毎に生成される。
+	 * 同じWebアプリケーションに applicationClassName の異なる JacobFilter を複数定義しても、
+	 * URI振り分け、guice の Injector、バルクヘッド、サーキットブレーカーは互いに独立している。
+	 * </pre>
 	 * @return RequestTranslaterインスタンス
 	 */
 	public final RequestTranslater getRequestTranslater(){
@@ -1,19 +1,43 @@
 package org.jacob;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,11 +60,19 @@ public final class JacobFilter implements Filter{
 	private Optional<String> allowCredentials;
 	private Optional<String> exposeheaders;
 	private JacobApplication application;
+	private TraceSampler traceSampler;
+	private String tracePath;
+	private long defaultTimeout;
+	private String deadlineHeader;
+	private ScheduledThreadPoolExecutor deadlineWatchdog;
+	private String filterName;
+	private final AtomicBoolean syncBulkheadWarned = new AtomicBoolean();
 
 	/* @see javax.servlet.Filter#init(javax.servlet.FilterConfig) */
 	@Override
 	public void init(FilterConfig config) throws ServletException{
 		String applicationClassName = config.getInitParameter("applicationClassName");
+		filterName = Optional.ofNullable(config.getFilterName()).orElse(applicationClassName);
 		accessControlAllowsPath = Optional.ofNullable(config.getInitParameter("accessPath")).orElse("*");
 		customheaders = Optional.ofNullable(config.getInitParameter("customHeaders")).orElse("Content-Type");
 		allowMethods = Optional.ofNullable(config.getInitParameter("allowMethods")).orElse("GET,POST,PUT,PATCH,DELETE,OPTIONS");
@@ -50,6 +82,21 @@ public final class JacobFilter implements Filter{
 		allowCredentials = Optional.ofNullable(config.getInitParameter("allowCredentials"))
 				.map(e->e.toLowerCase()).filter(e->"true".equals(e)||"false".equals(e));
 		exposeheaders = Optional.ofNullable(config.getInitParameter("exposeHeaders"));
+		Optional.ofNullable(config.getInitParameter("traceThreshold")).map(e->Long.parseLong(e.trim())).ifPresent(t->{
+			int bufferSize = Optional.ofNullable(config.getInitParameter("traceBufferSize")).map(e->Integer.parseInt(e.trim())).orElse(100);
+			long interval = Optional.ofNullable(config.getInitParameter("traceSampleInterval")).map(e->Long.parseLong(e.trim())).orElse(100L);
+			traceSampler = new TraceSampler(t, bufferSize, interval, "jacob-trace-watchdog-" + filterName);
+			tracePath = config.getInitParameter("tracePath");
+			logger.debug("## RequestTrace enabled threshold = " + t + "ms  tracePath = " + tracePath);
+		});
+		defaultTimeout = Optional.ofNullable(config.getInitParameter("timeout")).map(e->Long.parseLong(e.trim())).orElse(0L);
+		deadlineHeader = Optional.ofNullable(config.getInitParameter("deadlineHeader")).orElse("X-Request-Timeout");
+		deadlineWatchdog = new ScheduledThreadPoolExecutor(1, r->{
+			Thread t = new Thread(r, "jacob-deadline-" + filterName);
+			t.setDaemon(true);
+			return t;
+		});
+		deadlineWatchdog.setRemoveOnCancelPolicy(true);
 		logger.debug("## JacobApplication init() START  applicationClassName = " + applicationClassName);
 		ClassLoader loader = Thread.currentThread().getContextClassLoader();
 		try{
@@ -58,6 +105,16 @@ public final class JacobFilter implements Filter{
 			logger.debug("## RequestTranslater created.");
 			jsonResponder = application.init();
 			notFoundResponder = application.get404Responder();
+			Optional<Double> failureRate = Optional.ofNullable(config.getInitParameter("breakerFailureRate")).map(e->Double.parseDouble(e.trim()));
+			if (failureRate.isPresent() && jsonResponder instanceof RequestTranslater){
+				long minCalls = Optional.ofNullable(config.getInitParameter("breakerMinCalls")).map(e->Long.parseLong(e.trim())).orElse(20L);
+				long slowCall = Optional.ofNullable(config.getInitParameter("breakerSlowCall")).map(e->Long.parseLong(e.trim())).orElse(0L);
+				long openTime = Optional.ofNullable(config.getInitParameter("breakerOpenTime")).map(e->Long.parseLong(e.trim())).orElse(5000L);
+				long window = Optional.ofNullable(config.getInitParameter("breakerWindow")).map(e->Long.parseLong(e.trim())).orElse(10000L);
+				((RequestTranslater)jsonResponder).createCircuitBreakers(
+					()->new CircuitBreaker(failureRate.get(), minCalls, slowCall, openTime, window));
+				logger.debug("## CircuitBreaker enabled failureRate = " + failureRate.get());
+			}
 			logger.debug("## JacobApplication init() end.");
 		}catch(Exception e){
 			logger.error(e.getMessage(), e);
@@ -89,35 +146,591 @@ public final class JacobFilter implements Filter{
 			httpres.setStatus(400);
 			return;
 		}
+		if (tracePath != null && traceSampler != null && tracePath.equals(httpServletRequest.getRequestURI())){
+			write(httpres, traceSampler.answer(httpServletRequest));
+			return;
+		}
+		RequestTrace trace = traceSampler==null ? null : traceSampler.begin(httpServletRequest);
+		RequestTranslater translater = jsonResponder instanceof RequestTranslater ? (RequestTranslater)jsonResponder : null;
+		Deadline deadline = deadline(httpServletRequest, translater);
+		if (deadline != null && deadline.isExpired()){
+			httpres.setStatus(504);
+			endTrace(trace);
+			return;
+		}
+		CircuitBreaker breaker = translater==null ? null : translater.getCircuitBreaker(httpServletRequest.getRequestURI());
+		CircuitBreaker.Permit permit = breaker==null ? null : breaker.allow();
+		if (breaker != null && permit==null){
+			logger.debug("## circuit open : " + httpServletRequest.getRequestURI());
+			httpres.setStatus(503);
+			endTrace(trace);
+			return;
+		}
+		BulkheadExecutor bulkhead = translater==null ? null : translater.getBulkhead(httpServletRequest);
+		// 期限もバルクヘッドも無ければタイムアウト・受付拒否は起きないので、request, response はそのまま渡す
+		Exchange exchange = new Exchange(httpServletRequest, httpres, trace, deadline, breaker, permit, deadline != null || bulkhead != null);
+		if (bulkhead==null){
+			if (deadline==null){
+				process(exchange);
+			}else{
+				processInline(exchange);
+			}
+			return;
+		}
+		if (httpServletRequest.isAsyncSupported()){
+			AsyncContext asyncContext = httpServletRequest.startAsync();
+			FutureTask<Void> task = new FutureTask<Void>(()->{
+				boolean owner = false;
+				try{
+					process(exchange);
+					owner = exchange.responded;
+				}catch(Throwable e){
+					// Error でも AsyncContext を完了させないと、タイムアウトの無い応答は終わらない
+					logger.error(e.getMessage(), e);
+					owner = exchange.fail(500) || exchange.responded;
+				}finally{
+					if (owner) asyncContext.complete();
+				}
+			}, null);
+			asyncContext.setTimeout(deadline==null ? 0L : Math.max(1L, deadline.getRemainingMillis()));
+			asyncContext.addListener(new AsyncListener(){
+				@Override
+				public void onTimeout(AsyncEvent event) throws IOException{
+					if (exchange.fail(504)){
+						task.cancel(true);
+						asyncContext.complete();
+					}
+				}
+				@Override
+				public void onComplete(AsyncEvent event){
+				}
+				@Override
+				public void onError(AsyncEvent event){
+				}
+				@Override
+				public void onStartAsync(AsyncEvent event){
+				}
+			});
+			try{
+				bulkhead.execute(task);
+			}catch(RejectedExecutionException e){
+				logger.warn("## bulkhead rejected : " + bulkhead.getName());
+				if (exchange.reject(503)) asyncContext.complete();
+			}
+			return;
+		}
+		if (syncBulkheadWarned.compareAndSet(false, true)){
+			logger.warn("## async-supported is not enabled for filter '" + filterName
+				+ "' : bulkhead routes block the container thread and give no thread isolation.");
+		}
+		FutureTask<Void> task = new FutureTask<Void>(()->{
+			process(exchange);
+			return null;
+		});
+		try{
+			bulkhead.execute(task);
+		}catch(RejectedExecutionException e){
+			logger.warn("## bulkhead rejected : " + bulkhead.getName());
+			exchange.reject(503);
+			return;
+		}
+		try{
+			if (deadline==null){
+				task.get();
+			}else{
+				task.get(deadline.getRemainingNanos(), TimeUnit.NANOSECONDS);
+			}
+		}catch(TimeoutException e){
+			if (exchange.fail(504)) task.cancel(true);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			// 実行待ちの試行を取り消した場合も、サーキットブレーカーを試行中のままにしない
+			if (exchange.reject(503)) task.cancel(true);
+			throw new ServletException(e);
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new ServletException(e.getCause());
+		}
+	}
+	/**
+	 * 処理期限の取得.
+	 * <pre>URIのタイムアウト、無ければ初期化パラメータ timeout。
+	 * リクエストヘッダはそれより短い場合だけ採用し、ヘッダだけでは処理期限を設けない。</pre>
+	 */
+	private Deadline deadline(HttpServletRequest httpServletRequest, RequestTranslater translater){
+		long timeout = translater==null ? 0L : translater.getTimeout(httpServletRequest);
+		if (timeout <= 0L) timeout = defaultTimeout;
+		if (timeout <= 0L) return null;
+		String header = httpServletRequest.getHeader(deadlineHeader);
+		if (header != null){
+			try{
+				long t = Long.parseLong(header.trim());
+				if (t >= 0L && t < timeout) timeout = t;
+			}catch(NumberFormatException e){
+				logger.debug("## invalid " + deadlineHeader + " : " + header);
+			}
+		}
+		return new Deadline(timeout);
+	}
+	/**
+	 * バルクヘッドの無いURIの処理期限付き実行.
+	 * <pre>コンテナのスレッドでそのまま実行し、処理期限でウォッチドッグが 504 を確定して、
+	 * 空のボディでクライアントへ送信してから、コンテナのスレッドに割込みをかける。
+	 * 割込みに応じない処理（ソケットの読込み等）の場合、クライアントには期限で 504 が届くが、
+	 * コンテナのスレッドは JsonResponder#answer が戻るまで占有される。割込みは処理の終了時に解除する。</pre>
+	 */
+	private void processInline(Exchange exchange) throws IOException{
+		exchange.attachWorker(Thread.currentThread());
+		ScheduledFuture<?> watchdog = deadlineWatchdog.schedule(()->{
+			if (exchange.fail(504)){
+				exchange.commitFailure();
+				exchange.interruptWorker();
+			}
+		}, exchange.deadline.getRemainingNanos(), TimeUnit.NANOSECONDS);
+		try{
+			process(exchange);
+		}catch(IOException | RuntimeException e){
+			if (!exchange.failed) throw e;
+			logger.debug("## after timeout : " + e.getMessage());
+		}finally{
+			watchdog.cancel(false);
+			if (exchange.detachWorker()) Thread.interrupted();
+		}
+	}
+	private void process(Exchange exchange) throws IOException{
+		// 実行待ちの間にタイムアウト・受付拒否が確定していれば実行しない
+		if (!exchange.started.compareAndSet(false, true)) return;
+		if (exchange.trace != null) exchange.trace.attach(Thread.currentThread());
+		Deadline.attach(exchange.deadline);
+		RequestTranslater.attachResponse(exchange.guardedResponse);
+		long begin = System.nanoTime();
+		int status = 500;
+		try{
+			status = respond(exchange);
+		}finally{
+			Deadline.attach(null);
+			RequestTranslater.attachResponse(null);
+			if (exchange.trace != null){
+				exchange.trace.attach(null);
+				traceSampler.end(exchange.trace);
+			}
+			if (exchange.breaker != null && (exchange.responded || !exchange.done.get())){
+				exchange.breaker.record(exchange.permit, status >= 500, System.nanoTime() - begin);
+			}
+		}
+	}
+	private void endTrace(RequestTrace trace){
+		if (trace != null) traceSampler.end(trace);
+	}
+	private int respond(Exchange exchange) throws IOException{
+		HttpServletRequest httpServletRequest = exchange.guardedRequest;
+		HttpServletResponse httpres = exchange.guardedResponse;
 		logger.debug("## jsonResponder = " + jsonResponder);
 		if (jsonResponder==null){
-			httpres.setStatus(404);
-			return;
+			if (exchange.claim()) httpres.setStatus(404);
+			return 404;
 		}
-		((RequestTranslater)jsonResponder).response = (HttpServletResponse)response;
 		String content = jsonResponder.answer(httpServletRequest);
+		RequestTrace.markCurrent(RequestTrace.Phase.ANSWER);
+		int status;
 		if (content != null){
-			httpres.setStatus(jsonResponder.getStatus(httpServletRequest));
-			byte[] b = content.getBytes();
-			httpres.addHeader("Content-Length", Integer.toString(b.length));
-			response.setCharacterEncoding("UTF-8");
-			response.getOutputStream().write(content.getBytes());
+			status = jsonResponder.getStatus(httpServletRequest);
 		}else{
-			httpres.setStatus(404);
-			if (notFoundResponder != null){
-				String str = notFoundResponder.answer(httpServletRequest);
-				if (str != null){
-					byte[] b = str.getBytes();
-					httpres.addHeader("Content-Length", Integer.toString(b.length));
-					response.setCharacterEncoding("UTF-8");
-					response.getOutputStream().write(str.getBytes());
-				}
-			}
+			status = 404;
+			content = notFoundResponder==null ? null : notFoundResponder.answer(httpServletRequest);
+		}
+		if (!exchange.claim()){
+			logger.debug("## response already sent : " + httpServletRequest.getRequestURI());
+			return status;
+		}
+		if (exchange.deadline != null && exchange.deadline.isExpired()){
+			httpres.setStatus(504);
+			return 504;
+		}
+		httpres.setStatus(status);
+		if (content != null){
+			write(httpres, content);
+		}
+		return status;
+	}
+	private void write(HttpServletResponse httpres, String content) throws IOException{
+		byte[] b = content.getBytes();
+		RequestTrace.markCurrent(RequestTrace.Phase.ENCODE);
+		httpres.addHeader("Content-Length", Integer.toString(b.length));
+		httpres.setCharacterEncoding("UTF-8");
+		httpres.getOutputStream().write(b);
+		if (RequestTrace.current() != null){
+			// コンテナのバッファに入れただけではソケットへの書込み時間にならないので、トレース中は送信してから記録する
+			httpres.flushBuffer();
+			RequestTrace.markCurrent(RequestTrace.Phase.WRITE);
 		}
 	}
 	/* @see javax.servlet.Filter#destroy() */
 	@Override
 	public void destroy(){
+		if (traceSampler != null) traceSampler.shutdown();
+		deadlineWatchdog.shutdownNow();
+		if (jsonResponder instanceof RequestTranslater) ((RequestTranslater)jsonResponder).shutdown();
 		application.onDestroy();
 	}
+
+	/**
+	 * 1リクエストの処理状態.
+	 * <pre>JsonResponder の応答と、タイムアウト・受付拒否の応答のうち、先に確定した方だけを返す。
+	 * タイムアウト・受付拒否が起こり得る場合は、JsonResponder には確定した後は使えなくなる request, response を渡す。</pre>
+	 */
+	private final class Exchange{
+		private final HttpServletRequest request;
+		private final HttpServletResponse response;
+		private final HttpServletRequest guardedRequest;
+		private final HttpServletResponse guardedResponse;
+		private final RequestTrace trace;
+		private final Deadline deadline;
+		private final CircuitBreaker breaker;
+		private final CircuitBreaker.Permit permit;
+		private final AtomicBoolean done = new AtomicBoolean();
+		private final AtomicBoolean started = new AtomicBoolean();
+		private volatile boolean responded;
+		private volatile boolean failed;
+		private Thread worker;
+		private boolean interrupted;
+
+		private Exchange(HttpServletRequest request, HttpServletResponse response, RequestTrace trace, Deadline deadline, CircuitBreaker breaker,
+				CircuitBreaker.Permit permit, boolean guarded){
+			this.request = request;
+			this.response = response;
+			this.guardedRequest = guarded ? new GuardedRequest(request, this) : request;
+			this.guardedResponse = guarded ? new GuardedResponse(response, this) : response;
+			this.trace = trace;
+			this.deadline = deadline;
+			this.breaker = breaker;
+			this.permit = permit;
+		}
+		/**
+		 * JsonResponder の応答として確定.
+		 * <pre>JsonResponder が getWriter() で書いた文字は、確定の前に response のバッファへ移す。</pre>
+		 * @return true = 確定した、false = 既に他の応答で確定している
+		 */
+		private boolean claim(){
+			if (guardedResponse instanceof GuardedResponse) ((GuardedResponse)guardedResponse).flushWriter();
+			if (!done.compareAndSet(false, true)) return false;
+			responded = true;
+			return true;
+		}
+		/**
+		 * 失敗の応答として確定.
+		 * <pre>サーキットブレーカーに失敗を記録する。
+		 * トレースにはイベントとして記録し、ワーカースレッドが処理中であれば、処理を終えるまでトレースを終了しない。</pre>
+		 * @param status HTTP status
+		 * @return true = 確定した、false = 既に他の応答で確定している
+		 */
+		private boolean fail(int status){
+			if (!done.compareAndSet(false, true)) return false;
+			failed = true;
+			response.setStatus(status);
+			if (breaker != null && deadline != null && status==504){
+				breaker.record(permit, true, TimeUnit.MILLISECONDS.toNanos(deadline.getTimeoutMillis()));
+			}
+			if (trace != null) trace.event((status==504 ? "timeout " : "failed ") + status);
+			release();
+			return true;
+		}
+		/**
+		 * 受付拒否の応答として確定.
+		 * <pre>サーキットブレーカーの試行中であれば、遮断中に戻して次のリクエストで再試行させる。</pre>
+		 * @param status HTTP status
+		 * @return true = 確定した、false = 既に他の応答で確定している
+		 */
+		private boolean reject(int status){
+			if (!done.compareAndSet(false, true)) return false;
+			failed = true;
+			if (breaker != null) breaker.abandon(permit);
+			response.setStatus(status);
+			if (trace != null) trace.event("rejected " + status);
+			release();
+			return true;
+		}
+		/**
+		 * 失敗の応答の送信.
+		 * <pre>JsonResponder の処理中に、ウォッチドッグのスレッドから空のボディで応答をコミットする。</pre>
+		 */
+		private void commitFailure(){
+			try{
+				response.resetBuffer();
+				response.setContentLength(0);
+				response.flushBuffer();
+			}catch(IOException | IllegalStateException e){
+				logger.debug("## failure response not sent : " + e.getMessage());
+			}
+		}
+		/**
+		 * ワーカースレッドが処理を始めていなければ、トレースを終了して以後の実行を止める.
+		 */
+		private void release(){
+			if (started.compareAndSet(false, true)) endTrace(trace);
+		}
+		/**
+		 * 処理期限で割込みをかけるスレッドの登録.
+		 * @param thread コンテナのスレッド
+		 */
+		private synchronized void attachWorker(Thread thread){
+			worker = thread;
+		}
+		/**
+		 * 処理中のスレッドへの割込み.
+		 */
+		private synchronized void interruptWorker(){
+			if (worker==null) return;
+			interrupted = true;
+			worker.interrupt();
+		}
+		/**
+		 * 処理を終えたスレッドの登録解除.
+		 * @return true = 割込みをかけた
+		 */
+		private synchronized boolean detachWorker(){
+			worker = null;
+			return interrupted;
+		}
+		private void checkAlive() throws IOException{
+			if (failed) throw new IOException("request already answered by timeout or rejection : " + request.getRequestURI());
+		}
+	}
+
+	/**
+	 * タイムアウト・受付拒否の確定後に読めなくなる request.
+	 * <pre>応答済の request はコンテナに再利用されるので、ワーカースレッドからリクエストボディを読ませない。</pre>
+	 */
+	private static final class GuardedRequest extends HttpServletRequestWrapper{
+		private final Exchange exchange;
+		private BufferedReader guardedReader;
+		private GuardedRequest(HttpServletRequest request, Exchange exchange){
+			super(request);
+			this.exchange = exchange;
+		}
+		@Override
+		public ServletInputStream getInputStream() throws IOException{
+			exchange.checkAlive();
+			ServletInputStream in = super.getInputStream();
+			return new ServletInputStream(){
+				@Override
+				public int read() throws IOException{
+					exchange.checkAlive();
+					return in.read();
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException{
+					exchange.checkAlive();
+					return in.read(b, off, len);
+				}
+				@Override
+				public int available() throws IOException{
+					exchange.checkAlive();
+					return in.available();
+				}
+				@Override
+				public void close() throws IOException{
+					if (!exchange.failed) in.close();
+				}
+				@Override
+				public boolean isFinished(){
+					return exchange.failed || in.isFinished();
+				}
+				@Override
+				public boolean isReady(){
+					return !exchange.failed && in.isReady();
+				}
+				@Override
+				public void setReadListener(ReadListener listener){
+					in.setReadListener(listener);
+				}
+			};
+		}
+		@Override
+		public synchronized BufferedReader getReader() throws IOException{
+			exchange.checkAlive();
+			if (guardedReader != null) return guardedReader;
+			BufferedReader reader = super.getReader();
+			guardedReader = new BufferedReader(new Reader(){
+				@Override
+				public int read(char[] cbuf, int off, int len) throws IOException{
+					exchange.checkAlive();
+					return reader.read(cbuf, off, len);
+				}
+				@Override
+				public void close() throws IOException{
+					if (!exchange.failed) reader.close();
+				}
+			});
+			return guardedReader;
+		}
+	}
+
+	/**
+	 * タイムアウト・受付拒否の確定後に書けなくなる response.
+	 * <pre>確定後のヘッダ、status の設定は無視し、出力は IOException にする。
+	 * getWriter() の文字は response のバッファに書くだけで、JsonResponder が flush() しない限りソケットには送らない。</pre>
+	 */
+	private static final class GuardedResponse extends HttpServletResponseWrapper{
+		private final Exchange exchange;
+		private Writer encoder;
+		private PrintWriter writer;
+		private GuardedResponse(HttpServletResponse response, Exchange exchange){
+			super(response);
+			this.exchange = exchange;
+		}
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException{
+			exchange.checkAlive();
+			ServletOutputStream out = super.getOutputStream();
+			return new ServletOutputStream(){
+				@Override
+				public void write(int b) throws IOException{
+					exchange.checkAlive();
+					out.write(b);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException{
+					exchange.checkAlive();
+					out.write(b, off, len);
+				}
+				@Override
+				public void flush() throws IOException{
+					exchange.checkAlive();
+					out.flush();
+				}
+				@Override
+				public void close() throws IOException{
+					if (!exchange.failed) out.close();
+				}
+				@Override
+				public boolean isReady(){
+					return !exchange.failed && out.isReady();
+				}
+				@Override
+				public void setWriteListener(WriteListener listener){
+					out.setWriteListener(listener);
+				}
+			};
+		}
+		@Override
+		public synchronized PrintWriter getWriter() throws IOException{
+			exchange.checkAlive();
+			if (writer != null) return writer;
+			ServletOutputStream out = super.getOutputStream();
+			encoder = new OutputStreamWriter(new OutputStream(){
+				@Override
+				public void write(int b) throws IOException{
+					exchange.checkAlive();
+					out.write(b);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException{
+					exchange.checkAlive();
+					out.write(b, off, len);
+				}
+			}, getCharacterEncoding());
+			writer = new PrintWriter(encoder){
+				@Override
+				public void flush(){
+					super.flush();
+					try{
+						exchange.checkAlive();
+						out.flush();
+					}catch(IOException e){
+						setError();
+					}
+				}
+			};
+			return writer;
+		}
+		/**
+		 * getWriter() で書いた文字を response のバッファに移す.
+		 * <pre>response はコミットしないので、この後の status, ヘッダの設定は有効である。</pre>
+		 */
+		private synchronized void flushWriter(){
+			if (encoder==null) return;
+			try{
+				encoder.flush();
+			}catch(IOException e){
+				// タイムアウト・受付拒否が確定していれば捨てる
+			}
+		}
+		@Override
+		public void setStatus(int sc){
+			if (!exchange.failed) super.setStatus(sc);
+		}
+		@Override
+		public void sendError(int sc, String msg) throws IOException{
+			exchange.checkAlive();
+			super.sendError(sc, msg);
+		}
+		@Override
+		public void sendError(int sc) throws IOException{
+			exchange.checkAlive();
+			super.sendError(sc);
+		}
+		@Override
+		public void sendRedirect(String location) throws IOException{
+			exchange.checkAlive();
+			super.sendRedirect(location);
+		}
+		@Override
+		public void setHeader(String name, String value){
+			if (!exchange.failed) super.setHeader(name, value);
+		}
+		@Override
+		public void addHeader(String name, String value){
+			if (!exchange.failed) super.addHeader(name, value);
+		}
+		@Override
+		public void setIntHeader(String name, int value){
+			if (!exchange.failed) super.setIntHeader(name, value);
+		}
+		@Override
+		public void addIntHeader(String name, int value){
+			if (!exchange.failed) super.addIntHeader(name, value);
+		}
+		@Override
+		public void setDateHeader(String name, long date){
+			if (!exchange.failed) super.setDateHeader(name, date);
+		}
+		@Override
+		public void addDateHeader(String name, long date){
+			if (!exchange.failed) super.addDateHeader(name, date);
+		}
+		@Override
+		public void addCookie(Cookie cookie){
+			if (!exchange.failed) super.addCookie(cookie);
+		}
+		@Override
+		public void setContentType(String type){
+			if (!exchange.failed) super.setContentType(type);
+		}
+		@Override
+		public void setCharacterEncoding(String charset){
+			if (!exchange.failed) super.setCharacterEncoding(charset);
+		}
+		@Override
+		public void setContentLength(int len){
+			if (!exchange.failed) super.setContentLength(len);
+		}
+		@Override
+		public void setContentLengthLong(long len){
+			if (!exchange.failed) super.setContentLengthLong(len);
+		}
+		@Override
+		public void flushBuffer() throws IOException{
+			exchange.checkAlive();
+			super.flushBuffer();
+		}
+		@Override
+		public void reset(){
+			if (!exchange.failed) super.reset();
+		}
+		@Override
+		public void resetBuffer(){
+			if (!exchange.failed) super.resetBuffer();
+		}
+	}
 }
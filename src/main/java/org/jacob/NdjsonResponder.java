@@ -0,0 +1,325 @@
+package org.jacob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * NDJSON 一括取込み JsonResponder. NdjsonResponder
+ * <pre>
+ * 改行区切り JSON（NDJSON）のリクエストボディを {@link RequestWrapper#getBody()} で一括して読まずに、
+ * InputStream から順次読み込み、batchSize 件毎の {@link RecordBatch} にしてワーカースレッドで並列に処理する。
+ * batchSize 件に達していなくても、バッチのバイト数が maxBatchBytes（デフォルト 4MB）に達したら処理に回す。
+ * 処理中のバッチは、件数で parallelism の 2倍まで、バッファのバイト数で maxBytesInFlight（デフォルト 64MB）までに
+ * 制限され、超える場合は読込みを待たせる。
+ * 1レコードの長さは maxRecordLength（デフォルト 1MB）までで、超える場合は HTTP 413 を返すので、
+ * ペイロードの大きさに関係なく、1リクエストのメモリ使用量は maxBytesInFlight と読込み中のバッファ
+ * （maxBatchBytes + maxRecordLength 程度）までである。
+ * レコード毎のコピーはせず、バッチ毎のバッファ上の位置で保持する。
+ * バッチのバッファは前のバッチのバイト数から確保するので、読込み中の拡張（コピー）は通常発生しない。
+ * スレッドプールは、JacobFilter の破棄時に {@link RequestTranslater} が停止する。
+ * 読込み毎に {@link Deadline#current()} と割込みを確認し、期限切れは HTTP 504、割込みは HTTP 503 で読込みを止める。
+ *
+ * 応答は、{"records":レコード件数,"batches":[processBatch の返却値,...]} の JSON になる。
+ * processBatch が例外を発生したバッチは {"batch":バッチ番号,"error":メッセージ} になる。
+ * 応答を変える場合は、{@link NdjsonResponder#result(long, List)} をオーバーライドする。
+ *
+ * 例）1000件毎に 4スレッドで処理する
+ *    public class DeviceIngestResponder extends NdjsonResponder{
+ *       public DeviceIngestResponder(){
+ *          super(1000, 4);
+ *       }
+ *       &#064;Override
+ *       protected String processBatch(RecordBatch batch){
+ *          for(int i=0; i < batch.size(); i++){
+ *             String json = batch.getString(i);
+ *             //
+ *          }
+ *          return "{\"batch\":" + batch.getIndex() + ",\"count\":" + batch.size() + "}";
+ *       }
+ *    }
+ * </pre>
+ */
+public abstract class NdjsonResponder implements JsonResponder{
+	private static final String STATUS_ATTRIBUTE = NdjsonResponder.class.getName() + ".status";
+	private static final int READ_SIZE = 64 * 1024;
+	private Logger logger = LoggerFactory.getLogger(this.getClass());
+	private final int batchSize;
+	private final int maxRecordLength;
+	private final int maxBatchBytes;
+	private final int maxBytesInFlight;
+	private final int maxBufferLength;
+	private final int maxInFlight;
+	private final ExecutorService executor;
+
+	/**
+	 * デフォルトコンストラクタ.
+	 * <pre>batchSize = 1000, parallelism = 利用可能なプロセッサ数, maxRecordLength = 1MB,
+	 * maxBatchBytes = 4MB, maxBytesInFlight = 64MB</pre>
+	 */
+	protected NdjsonResponder(){
+		this(1000, Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * コンストラクタ.
+	 * <pre>maxRecordLength = 1MB, maxBatchBytes = 4MB, maxBytesInFlight = 64MB</pre>
+	 * @param batchSize 1バッチのレコード件数
+	 * @param parallelism バッチを処理するスレッド数
+	 */
+	protected NdjsonResponder(int batchSize, int parallelism){
+		this(batchSize, parallelism, 1024 * 1024);
+	}
+	/**
+	 * コンストラクタ.
+	 * @param batchSize 1バッチのレコード件数
+	 * @param parallelism バッチを処理するスレッド数
+	 * @param maxRecordLength 1レコードの最大バイト数、超える場合は HTTP 413 を返す。
+	 */
+	protected NdjsonResponder(int batchSize, int parallelism, int maxRecordLength){
+		this(batchSize, parallelism, maxRecordLength, 4 * 1024 * 1024, 64 * 1024 * 1024);
+	}
+	/**
+	 * コンストラクタ.
+	 * @param batchSize 1バッチのレコード件数
+	 * @param parallelism バッチを処理するスレッド数
+	 * @param maxRecordLength 1レコードの最大バイト数、超える場合は HTTP 413 を返す。
+	 * @param maxBatchBytes 1バッチのバイト数、達した場合は batchSize 件未満でも処理に回す。
+	 * @param maxBytesInFlight 処理中のバッチのバッファの合計バイト数、超える場合は読込みを待たせる。
+	 * @throws IllegalArgumentException 1未満の値、または maxBatchBytes + maxRecordLength が配列の大きさを超える場合
+	 */
+	protected NdjsonResponder(int batchSize, int parallelism, int maxRecordLength, int maxBatchBytes, int maxBytesInFlight){
+		long maxBuffer = (long)maxBatchBytes + maxRecordLength + READ_SIZE;
+		if (batchSize < 1 || parallelism < 1 || maxRecordLength < 1 || maxBatchBytes < 1 || maxBytesInFlight < 1
+			|| maxBuffer > Integer.MAX_VALUE - 8){
+			throw new IllegalArgumentException("batchSize = " + batchSize + ", parallelism = " + parallelism
+				+ ", maxRecordLength = " + maxRecordLength + ", maxBatchBytes = " + maxBatchBytes + ", maxBytesInFlight = " + maxBytesInFlight);
+		}
+		this.batchSize = batchSize;
+		this.maxRecordLength = maxRecordLength;
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxBytesInFlight = maxBytesInFlight;
+		this.maxBufferLength = (int)maxBuffer;
+		this.maxInFlight = parallelism * 2;
+		AtomicInteger count = new AtomicInteger();
+		String name = "jacob-ingest-" + getClass().getSimpleName() + "-";
+		executor = new ThreadPoolExecutor(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r->{
+			Thread t = new Thread(r, name + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * バッチ処理.
+	 * <pre>ワーカースレッドで並列に実行される。</pre>
+	 * @param batch RecordBatch
+	 * @return バッチの処理結果 JSON文字列
+	 */
+	protected abstract String processBatch(RecordBatch batch);
+
+	/**
+	 * 応答の生成.
+	 * @param records レコード件数
+	 * @param batchResults バッチ番号順の processBatch の返却値
+	 * @return HTTP応答の JSON文字列
+	 */
+	protected String result(long records, List<String> batchResults){
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"records\":").append(records).append(",\"batches\":[");
+		String sep = "";
+		for(String s:batchResults){
+			sb.append(sep).append(s);
+			sep = ",";
+		}
+		return sb.append("]}").toString();
+	}
+
+	/* @see org.jacob.JsonResponder#answer(javax.servlet.http.HttpServletRequest) */
+	@Override
+	public String answer(HttpServletRequest request){
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		Semaphore bytesInFlight = new Semaphore(maxBytesInFlight);
+		List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+		Deadline deadline = Deadline.current();
+		long records = 0L;
+		try(InputStream in = request.getInputStream()){
+			byte[] buf = new byte[READ_SIZE];
+			int[] offsets = new int[batchSize];
+			int[] lengths = new int[batchSize];
+			int count = 0;
+			int start = 0;
+			int limit = 0;
+			int length;
+			while((length=in.read(buf, limit, buf.length - limit)) >= 0){
+				checkDeadline(deadline);
+				int scan = limit;
+				limit += length;
+				for(int i=scan; i < limit; i++){
+					if (buf[i] != '\n') continue;
+					int end = i > start && buf[i - 1]=='\r' ? i - 1 : i;
+					if (end - start > maxRecordLength) throw new RecordTooLargeException(records + count);
+					if (end > start){
+						offsets[count] = start;
+						lengths[count] = end - start;
+						count++;
+					}
+					start = i + 1;
+					if (count==batchSize || start >= maxBatchBytes){
+						submit(futures, inFlight, bytesInFlight, deadline, new RecordBatch(futures.size(), records, buf, offsets, lengths, count));
+						records += count;
+						byte[] next = new byte[(int)Math.min(maxBufferLength, (long)Math.max(start, limit - start) + READ_SIZE)];
+						System.arraycopy(buf, start, next, 0, limit - start);
+						i -= start;
+						limit -= start;
+						start = 0;
+						buf = next;
+						offsets = new int[batchSize];
+						lengths = new int[batchSize];
+						count = 0;
+					}
+				}
+				// 改行の無い読込み中のレコードは CR 1バイト分まで許容する
+				if (limit - start > maxRecordLength + 1) throw new RecordTooLargeException(records + count);
+				if (limit==buf.length){
+					// maxBatchBytes で区切るので、読込み中のバッファは maxBufferLength に収まる
+					buf = Arrays.copyOf(buf, (int)Math.min(maxBufferLength, (long)buf.length + Math.max(READ_SIZE, buf.length / 2)));
+				}
+			}
+			if (limit > start){
+				offsets[count] = start;
+				lengths[count] = limit - start;
+				if (buf[limit - 1]=='\r') lengths[count]--;
+				if (lengths[count] > maxRecordLength) throw new RecordTooLargeException(records + count);
+				if (lengths[count] > 0) count++;
+			}
+			if (count > 0){
+				submit(futures, inFlight, bytesInFlight, deadline, new RecordBatch(futures.size(), records, buf, offsets, lengths, count));
+				records += count;
+			}
+		}catch(RecordTooLargeException e){
+			logger.warn("## record too large : record = " + e.record + ", maxRecordLength = " + maxRecordLength);
+			futures.forEach(f->f.cancel(true));
+			request.setAttribute(STATUS_ATTRIBUTE, 413);
+			return "{\"error\":\"record too large\",\"record\":" + e.record + ",\"maxRecordLength\":" + maxRecordLength + "}";
+		}catch(IOException e){
+			logger.warn(e.getMessage(), e);
+			futures.forEach(f->f.cancel(true));
+			request.setAttribute(STATUS_ATTRIBUTE, 400);
+			return "{\"error\":" + RequestTrace.quote(e.getMessage()) + "}";
+		}catch(InterruptedException e){
+			return abort(request, futures, false);
+		}catch(TimeoutException e){
+			return abort(request, futures, true);
+		}
+		List<String> results = new ArrayList<String>(futures.size());
+		for(int i=0; i < futures.size(); i++){
+			try{
+				if (deadline==null){
+					results.add(futures.get(i).get());
+				}else{
+					results.add(futures.get(i).get(deadline.getRemainingNanos(), TimeUnit.NANOSECONDS));
+				}
+			}catch(InterruptedException e){
+				return abort(request, futures, false);
+			}catch(TimeoutException e){
+				return abort(request, futures, true);
+			}catch(ExecutionException e){
+				logger.warn(e.getCause().getMessage(), e.getCause());
+				results.add("{\"batch\":" + i + ",\"error\":" + RequestTrace.quote(String.valueOf(e.getCause().getMessage())) + "}");
+			}
+		}
+		return result(records, results);
+	}
+	private static void checkDeadline(Deadline deadline) throws InterruptedException, TimeoutException{
+		if (Thread.interrupted()) throw new InterruptedException();
+		if (deadline != null && deadline.isExpired()) throw new TimeoutException();
+	}
+	private String abort(HttpServletRequest request, List<CompletableFuture<String>> futures, boolean expired){
+		futures.forEach(f->f.cancel(true));
+		if (expired){
+			request.setAttribute(STATUS_ATTRIBUTE, 504);
+			return "{\"error\":\"deadline exceeded\"}";
+		}
+		Thread.currentThread().interrupt();
+		request.setAttribute(STATUS_ATTRIBUTE, 503);
+		return "{\"error\":\"interrupted\"}";
+	}
+	private void submit(List<CompletableFuture<String>> futures, Semaphore inFlight, Semaphore bytesInFlight, Deadline deadline, RecordBatch batch)
+			throws InterruptedException, TimeoutException{
+		// バッチはバッファ全体を保持するので、バッファの長さで数える。1バッチで上限を超える場合は上限まで。
+		int bytes = Math.min(batch.getBuffer().length, maxBytesInFlight);
+		acquire(inFlight, 1, deadline);
+		try{
+			acquire(bytesInFlight, bytes, deadline);
+		}catch(InterruptedException | TimeoutException e){
+			inFlight.release();
+			throw e;
+		}
+		CompletableFuture<String> future;
+		try{
+			future = CompletableFuture.supplyAsync(()->processBatch(batch), executor);
+		}catch(RuntimeException e){
+			bytesInFlight.release(bytes);
+			inFlight.release();
+			throw e;
+		}
+		future.whenComplete((r, t)->{
+			bytesInFlight.release(bytes);
+			inFlight.release();
+		});
+		futures.add(future);
+	}
+	private static void acquire(Semaphore semaphore, int permits, Deadline deadline) throws InterruptedException, TimeoutException{
+		if (deadline==null){
+			semaphore.acquire(permits);
+		}else if (!semaphore.tryAcquire(permits, deadline.getRemainingNanos(), TimeUnit.NANOSECONDS)){
+			throw new TimeoutException();
+		}
+	}
+
+	/**
+	 * スレッドプールの停止.
+	 */
+	void shutdown(){
+		executor.shutdownNow();
+	}
+
+	/**
+	 * HTTP status code を返す.
+	 * @return リクエストボディの読込みに失敗した場合 400、レコードが maxRecordLength を超えた場合 413、
+	 * 中断された場合 503、処理期限を過ぎた場合 504、それ以外は getStatus() の結果
+	 */
+	@Override
+	public int getStatus(HttpServletRequest request){
+		Object status = request.getAttribute(STATUS_ATTRIBUTE);
+		return status instanceof Integer ? (Integer)status : getStatus();
+	}
+
+	/**
+	 * レコードが maxRecordLength を超えた.
+	 */
+	private static final class RecordTooLargeException extends IOException{
+		private static final long serialVersionUID = 1L;
+		private final long record;
+		private RecordTooLargeException(long record){
+			super("record too large : " + record);
+			this.record = record;
+		}
+	}
+}
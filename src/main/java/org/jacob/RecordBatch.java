@@ -0,0 +1,98 @@
+package org.jacob;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * NDJSON レコードのバッチ. RecordBatch
+ * <pre>
+ * {@link NdjsonResponder} がリクエストの InputStream から読み込んだ、改行区切りのレコードの集まり。
+ * レコード毎にコピーせず、1つのバッファ上の開始位置と長さで保持する。
+ * 行末の CR と空行は除かれている。
+ * </pre>
+ */
+public final class RecordBatch{
+	private final long index;
+	private final long firstRecord;
+	private final byte[] buffer;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final int size;
+
+	RecordBatch(long index, long firstRecord, byte[] buffer, int[] offsets, int[] lengths, int size){
+		this.index = index;
+		this.firstRecord = firstRecord;
+		this.buffer = buffer;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.size = size;
+	}
+	/**
+	 * バッチ番号.
+	 * @return 0 から始まるバッチの通し番号
+	 */
+	public long getIndex(){
+		return index;
+	}
+	/**
+	 * 先頭レコード番号.
+	 * @return リクエスト全体で 0 から始まる、このバッチ先頭のレコード番号
+	 */
+	public long getFirstRecord(){
+		return firstRecord;
+	}
+	/**
+	 * レコード件数.
+	 * @return レコード件数
+	 */
+	public int size(){
+		return size;
+	}
+	/**
+	 * レコードを保持するバッファ.
+	 * <pre>内容を変更してはならない。</pre>
+	 * @return byte[]
+	 */
+	public byte[] getBuffer(){
+		return buffer;
+	}
+	/**
+	 * レコードのバッファ上の開始位置.
+	 * @param i バッチ内のレコード番号
+	 * @return 開始位置
+	 */
+	public int getOffset(int i){
+		checkIndex(i);
+		return offsets[i];
+	}
+	/**
+	 * レコードのバイト長.
+	 * @param i バッチ内のレコード番号
+	 * @return バイト長
+	 */
+	public int getLength(int i){
+		checkIndex(i);
+		return lengths[i];
+	}
+	/**
+	 * レコードの文字列取得（UTF-8）
+	 * @param i バッチ内のレコード番号
+	 * @return レコードの JSON 文字列
+	 */
+	public String getString(int i){
+		return getString(i, StandardCharsets.UTF_8);
+	}
+	/**
+	 * レコードの文字列取得（文字コード指定）
+	 * @param i バッチ内のレコード番号
+	 * @param charset 文字コード
+	 * @return レコードの JSON 文字列
+	 */
+	public String getString(int i, Charset charset){
+		checkIndex(i);
+		return new String(buffer, offsets[i], lengths[i], charset);
+	}
+	private void checkIndex(int i){
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException("index : " + i + ", size : " + size);
+	}
+}
@@ -0,0 +1,329 @@
+package org.jacob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * リクエスト・トレース. RequestTrace
+ * <pre>
+ * 1リクエストの処理フェーズ毎の経過時間と、JsonResponder 実装が任意に追加する子スパンを記録する。
+ * JacobFilter の初期化パラメータ traceThreshold を指定した場合のみ記録され、
+ * 指定しない場合は {@link RequestTrace#current()} は null を返し、{@link RequestTrace#span(String)} は何もしない。
+ * 閾値を超えたリクエストは、ウォッチドッグが採取したワーカースレッドのスタックと共に
+ * 診断用URI（初期化パラメータ tracePath）から JSON で参照できる。
+ * タイムアウト（504）や受付拒否は、応答を確定した時点をイベントとして記録し、
+ * トレースはワーカースレッドが処理を終えるまで終了しないので、応答後も止まっているスレッドのスタックを採取できる。
+ *
+ * JsonResponder 実装での子スパンの記録
+ *    &#064;Override
+ *    public String answer(HttpServletRequest request){
+ *       try(RequestTrace.Span span = RequestTrace.span("select-sales")){
+ *          // 下流の処理
+ *       }
+ *       return json;
+ *    }
+ * </pre>
+ */
+public final class RequestTrace{
+	/**
+	 * 処理フェーズ.
+	 * <pre>各フェーズの終了時点を記録する。DISPATCH はフィルタが受け付けた時点である。</pre>
+	 */
+	public enum Phase{
+		/** フィルタ受付 */
+		DISPATCH,
+		/** URI振り分け */
+		ROUTE,
+		/** JsonResponder#answer 実行 */
+		ANSWER,
+		/** 応答文字列のバイト変換 */
+		ENCODE,
+		/** ソケットへの書込み（flushBuffer まで） */
+		WRITE;
+	}
+
+	/** 1リクエスト当たりのスタック採取の上限 */
+	static final int MAX_STACK_SAMPLES = 32;
+
+	private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>();
+	private static final Span NOOP_SPAN = new Span(null, null);
+
+	private final String method;
+	private final String uri;
+	private final long startMillis;
+	private final long startNanos;
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private final List<Span> spans = new ArrayList<Span>();
+	private final List<StackSample> stackSamples = new ArrayList<StackSample>();
+	private final List<Event> events = new ArrayList<Event>();
+	private volatile Thread thread;
+	private volatile long endNanos;
+
+	/**
+	 * コンストラクタ.
+	 * @param method HTTPメソッド
+	 * @param uri リクエストURI
+	 */
+	RequestTrace(String method, String uri){
+		this.method = method;
+		this.uri = uri;
+		this.startMillis = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+		phaseNanos[Phase.DISPATCH.ordinal()] = startNanos;
+	}
+
+	/**
+	 * 実行中スレッドのトレース取得.
+	 * @return RequestTrace、トレースが無効、またはリクエスト処理中でない場合は null
+	 */
+	public static RequestTrace current(){
+		return CURRENT.get();
+	}
+	/**
+	 * 子スパンの開始.
+	 * <pre>try-with-resources で close した時点を終了とする。
+	 * トレースが無効な場合は、何も記録しない Span を返す。
+	 * </pre>
+	 * @param name スパン名
+	 * @return Span
+	 */
+	public static Span span(String name){
+		RequestTrace trace = CURRENT.get();
+		if (trace==null) return NOOP_SPAN;
+		Span span = new Span(trace, name);
+		synchronized(trace.spans){
+			trace.spans.add(span);
+		}
+		return span;
+	}
+
+	/**
+	 * 実行スレッドへの割当.
+	 * @param thread 処理を実行するスレッド、null で割当解除
+	 */
+	void attach(Thread thread){
+		this.thread = thread;
+		if (thread==null){
+			CURRENT.remove();
+		}else{
+			CURRENT.set(this);
+		}
+	}
+	/**
+	 * フェーズ終了の記録.
+	 * @param phase Phase
+	 */
+	void mark(Phase phase){
+		phaseNanos[phase.ordinal()] = System.nanoTime();
+	}
+	/**
+	 * 実行スレッドのフェーズ終了の記録.
+	 * @param phase Phase
+	 */
+	static void markCurrent(Phase phase){
+		RequestTrace trace = CURRENT.get();
+		if (trace != null) trace.mark(phase);
+	}
+	/**
+	 * イベントの記録.
+	 * <pre>ワーカースレッド以外から、タイムアウトや受付拒否の応答を確定した時点を記録する。</pre>
+	 * @param name イベント名
+	 */
+	void event(String name){
+		Event event = new Event(name, System.nanoTime() - startNanos);
+		synchronized(events){
+			events.add(event);
+		}
+	}
+	/**
+	 * トレースの終了.
+	 * @return true = 終了した、false = 既に終了している
+	 */
+	synchronized boolean finish(){
+		if (endNanos != 0L) return false;
+		endNanos = System.nanoTime();
+		return true;
+	}
+	/**
+	 * 経過時間（ナノ秒）
+	 * @param now System.nanoTime() の値
+	 * @return 開始からの経過時間、終了している場合は処理時間
+	 */
+	long elapsedNanos(long now){
+		long end = endNanos;
+		return (end==0L ? now : end) - startNanos;
+	}
+	/**
+	 * 実行スレッドのスタック採取.
+	 * <pre>ウォッチドッグから呼ばれる。</pre>
+	 */
+	void sampleStack(){
+		Thread t = thread;
+		if (t==null || endNanos != 0L) return;
+		StackTraceElement[] stack = t.getStackTrace();
+		synchronized(stackSamples){
+			if (stackSamples.size() < MAX_STACK_SAMPLES){
+				stackSamples.add(new StackSample(System.nanoTime() - startNanos, stack));
+			}
+		}
+	}
+
+	/**
+	 * JSON文字列の生成.
+	 * <pre>フェーズ毎の所要時間（ミリ秒）、子スパン、イベント、採取したスタックを出力する。</pre>
+	 * @return JSON文字列
+	 */
+	public String toJson(){
+		StringBuilder sb = new StringBuilder(256);
+		sb.append("{\"method\":").append(quote(method));
+		sb.append(",\"uri\":").append(quote(uri));
+		sb.append(",\"start\":").append(startMillis);
+		sb.append(",\"elapsed\":").append(millis(elapsedNanos(System.nanoTime())));
+		sb.append(",\"phases\":{");
+		long prev = startNanos;
+		String sep = "";
+		for(Phase phase:Phase.values()){
+			long t = phaseNanos[phase.ordinal()];
+			if (t==0L || phase==Phase.DISPATCH) continue;
+			sb.append(sep).append(quote(phase.name().toLowerCase())).append(':').append(millis(t - prev));
+			prev = t;
+			sep = ",";
+		}
+		sb.append("},\"spans\":[");
+		List<Span> spanList;
+		synchronized(spans){
+			spanList = new ArrayList<Span>(spans);
+		}
+		sep = "";
+		for(Span s:spanList){
+			sb.append(sep).append("{\"name\":").append(quote(s.name))
+			.append(",\"offset\":").append(millis(s.beginNanos - startNanos))
+			.append(",\"elapsed\":").append(s.endNanos==0L ? "null" : millis(s.endNanos - s.beginNanos))
+			.append('}');
+			sep = ",";
+		}
+		sb.append("],\"events\":[");
+		List<Event> eventList;
+		synchronized(events){
+			eventList = new ArrayList<Event>(events);
+		}
+		sep = "";
+		for(Event e:eventList){
+			sb.append(sep).append("{\"name\":").append(quote(e.name)).append(",\"offset\":").append(millis(e.offsetNanos)).append('}');
+			sep = ",";
+		}
+		sb.append("],\"stacks\":[");
+		List<StackSample> samples;
+		synchronized(stackSamples){
+			samples = new ArrayList<StackSample>(stackSamples);
+		}
+		sep = "";
+		for(StackSample sample:samples){
+			sb.append(sep).append("{\"offset\":").append(millis(sample.offsetNanos)).append(",\"frames\":[");
+			String fsep = "";
+			for(StackTraceElement e:sample.stack){
+				sb.append(fsep).append(quote(e.toString()));
+				fsep = ",";
+			}
+			sb.append("]}");
+			sep = ",";
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+	/**
+	 * 子スパン一覧.
+	 * @return 読取専用の List
+	 */
+	public List<Span> getSpans(){
+		synchronized(spans){
+			return Collections.unmodifiableList(new ArrayList<Span>(spans));
+		}
+	}
+
+	private static String millis(long nanos){
+		return Double.toString(nanos / 1000L / 1000.0);
+	}
+	static String quote(String s){
+		if (s==null) return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for(int i=0; i < s.length(); i++){
+			char c = s.charAt(i);
+			switch(c){
+			case '"':  sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20){
+					sb.append(String.format("\\u%04x", (int)c));
+				}else{
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * 子スパン.
+	 */
+	public static final class Span implements AutoCloseable{
+		private final RequestTrace trace;
+		private final String name;
+		private final long beginNanos;
+		private volatile long endNanos;
+
+		private Span(RequestTrace trace, String name){
+			this.trace = trace;
+			this.name = name;
+			this.beginNanos = trace==null ? 0L : System.nanoTime();
+		}
+		/**
+		 * スパン名.
+		 * @return スパン名
+		 */
+		public String getName(){
+			return name;
+		}
+		/**
+		 * 所要時間（ナノ秒）
+		 * @return 終了していない場合は -1
+		 */
+		public long getElapsedNanos(){
+			long end = endNanos;
+			return end==0L ? -1L : end - beginNanos;
+		}
+		/* @see java.lang.AutoCloseable#close() */
+		@Override
+		public void close(){
+			if (trace != null && endNanos==0L) endNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * イベント.
+	 */
+	private static final class Event{
+		private final String name;
+		private final long offsetNanos;
+		private Event(String name, long offsetNanos){
+			this.name = name;
+			this.offsetNanos = offsetNanos;
+		}
+	}
+
+	/**
+	 * 採取スタック.
+	 */
+	private static final class StackSample{
+		private final long offsetNanos;
+		private final StackTraceElement[] stack;
+		private StackSample(long offsetNanos, StackTraceElement[] stack){
+			this.offsetNanos = offsetNanos;
+			this.stack = stack;
+		}
+	}
+}
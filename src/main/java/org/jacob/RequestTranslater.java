@@ -1,10 +1,17 @@
 package org.jacob;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -56,15 +63,45 @@ import com.google.inject.Module;
  *    }
  * }
  *
+ * 重い処理のURIを、Webコンテナのスレッドから切り離して専用のスレッドプール（バルクヘッド）で実行する場合、
+ *
+ * public class SampleApplication extends JacobApplication {
+ *    &#064;Override
+ *    public JsonResponder init(){
+ *       RequestTranslater translater = getRequestTranslater();
+ *       // スレッド数 4、待ち行列 100 のバルクヘッド "export"
+ *       translater.addBulkhead("export", 4, 100);
+ *       // 優先度 10 のバルクヘッド "lookup"。実行待ちが発生すると、優先度の低い "export" は空きスレッドの分しか受け付けない。
+ *       translater.addBulkhead("lookup", 8, 200, 10);
+ *       translater.add("/sample/sales/export", ExportResponder.class, "export");
+ *       // バルクヘッドを指定しないURIは、Webコンテナのスレッドで実行する。
+ *       translater.add("/sample/sales/do", SampleResponder.class);
+ *       return translater;
+ *    }
+ * }
+ * バルクヘッドは、JsonResponder 実装クラスに {@link Bulkhead} アノテーションを付与して指定することもできる。
+ *
+ * URI毎の処理時間の上限（ミリ秒）は、add の引数、または {@link Timeout} アノテーションで指定する。
+ *       translater.add("/sample/sales/lookup", LookupResponder.class, null, 3000);
+ * 上限を過ぎると処理の終了を待たずに HTTP 504 を返す。残り時間は {@link Deadline#current()} で参照できる。
+ * バルクヘッドの無いURIは、処理が戻るまでWebコンテナのスレッドを占有する。
+ * Filter が非同期処理をサポート（web.xml で async-supported を true）している場合は、
+ * Webコンテナのスレッドを解放して非同期に応答する。サポートしていない場合は Webコンテナのスレッドが終了を待つので、
+ * 重いURIの同時実行数の上限にはなるが、Webコンテナのスレッドからの分離にはならない（初回に WARN ログを出力する）。
+ *
  * </pre>
  */
 public final class RequestTranslater implements JsonResponder{
+	private static final ThreadLocal<HttpServletResponse> CURRENT_RESPONSE = new ThreadLocal<HttpServletResponse>();
 	private Logger logger = LoggerFactory.getLogger(this.getClass());
 	private Map<String, JsonResponder> map = new HashMap<String, JsonResponder>();
-	private Map<String, Field> responseFiledMap = new HashMap<String, Field>();
 	private Injector injector;
 	private List<Module> moduleList = new ArrayList<Module>();
 	private int httpstatus = 200;
+	private Map<String, BulkheadExecutor> bulkheads = new LinkedHashMap<String, BulkheadExecutor>();
+	private Map<String, BulkheadExecutor> routeBulkheads = new HashMap<String, BulkheadExecutor>();
+	private Map<String, Long> routeTimeouts = new HashMap<String, Long>();
+	private Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
 	/**
 	 * コンストラクタ.
 	 * @param servletContext ServletContext
@@ -80,18 +117,178 @@ public final class RequestTranslater implements JsonResponder{
 	}
 	/**
 	 * URI振り分け設定登録.
+	 * <br/>JsonResponder実装クラスに {@link Bulkhead}、{@link Timeout} アノテーションが付与されていれば、
+	 * そのバルクヘッドで実行し、そのタイムアウトを適用する。
 	 * @param uriPath WebコンテキストからのURIパス文字列
 	 * @param cls JsonResponder実装クラス名
 	 */
 	public void add(String uriPath, Class<? extends JsonResponder> cls){
-		map.put(uriPath, injector.getInstance(cls));
+		Bulkhead bulkhead = cls.getAnnotation(Bulkhead.class);
+		add(uriPath, cls, bulkhead==null ? null : bulkhead.value());
+	}
+	/**
+	 * バルクヘッド指定のURI振り分け設定登録.
+	 * <br/>JsonResponder実装クラスに {@link Timeout} アノテーションが付与されていれば、そのタイムアウトを適用する。
+	 * @param uriPath WebコンテキストからのURIパス文字列
+	 * @param cls JsonResponder実装クラス名
+	 * @param bulkheadName {@link RequestTranslater#addBulkhead(String, int, int)} で登録したバルクヘッド名、
+	 * null の場合、Webコンテナのスレッドで実行する。
+	 * @throws IllegalArgumentException バルクヘッド名が登録されていない場合
+	 */
+	public void add(String uriPath, Class<? extends JsonResponder> cls, String bulkheadName){
+		Timeout timeout = cls.getAnnotation(Timeout.class);
+		add(uriPath, cls, bulkheadName, timeout==null ? 0L : timeout.value());
+	}
+	/**
+	 * バルクヘッド、タイムアウト指定のURI振り分け設定登録.
+	 * @param uriPath WebコンテキストからのURIパス文字列
+	 * @param cls JsonResponder実装クラス名
+	 * @param bulkheadName {@link RequestTranslater#addBulkhead(String, int, int)} で登録したバルクヘッド名、
+	 * null の場合、Webコンテナのスレッドで実行する。
+	 * @param timeoutMillis 処理時間の上限（ミリ秒）、0 以下の場合は JacobFilter の初期化パラメータ timeout に従う。
+	 * @throws IllegalArgumentException バルクヘッド名が登録されていない場合
+	 */
+	public void add(String uriPath, Class<? extends JsonResponder> cls, String bulkheadName, long timeoutMillis){
+		if (bulkheadName != null){
+			BulkheadExecutor bulkhead = bulkheads.get(bulkheadName);
+			if (bulkhead==null){
+				throw new IllegalArgumentException("bulkhead not found : " + bulkheadName);
+			}
+			routeBulkheads.put(uriPath, bulkhead);
+		}
+		if (timeoutMillis > 0L){
+			routeTimeouts.put(uriPath, timeoutMillis);
+		}
+		JsonResponder jsonResponder = injector.getInstance(cls);
+		map.put(uriPath, jsonResponder);
 		for(Field field:cls.getDeclaredFields()){
 			if (field.getAnnotation(Response.class) != null){
 				field.setAccessible(true);
-				responseFiledMap.put(uriPath, field);
+				try{
+					field.set(jsonResponder, response);
+				}catch(SecurityException | IllegalArgumentException | IllegalAccessException e){
+					logger.warn(e.getMessage(), e );
+				}
 			}
 		}
 	}
+	/**
+	 * バルクヘッド登録.
+	 * <br/>優先度 0 で登録する。バルクヘッドを指定する {@link RequestTranslater#add(String, Class, String)} よりも前に実行する必要がある。
+	 * @param name バルクヘッド名
+	 * @param threads スレッド数
+	 * @param queueDepth 待ち行列の長さ、超えた場合は HTTP 503 を返す。
+	 * @return BulkheadExecutor
+	 * @throws IllegalArgumentException 同じ名前のバルクヘッドが登録済の場合
+	 */
+	public BulkheadExecutor addBulkhead(String name, int threads, int queueDepth){
+		return addBulkhead(name, threads, queueDepth, 0);
+	}
+	/**
+	 * 優先度指定のバルクヘッド登録.
+	 * <br/>優先度の高いバルクヘッドに実行待ちがある間、優先度の低いバルクヘッドは空きスレッドが無ければ HTTP 503 を返す。
+	 * バルクヘッドを指定する {@link RequestTranslater#add(String, Class, String)} よりも前に実行する必要がある。
+	 * @param name バルクヘッド名
+	 * @param threads スレッド数
+	 * @param queueDepth 待ち行列の長さ、超えた場合は HTTP 503 を返す。
+	 * @param priority 優先度、大きい方が優先
+	 * @return BulkheadExecutor
+	 * @throws IllegalArgumentException 同じ名前のバルクヘッドが登録済の場合
+	 */
+	public BulkheadExecutor addBulkhead(String name, int threads, int queueDepth, int priority){
+		if (bulkheads.containsKey(name)){
+			throw new IllegalArgumentException("bulkhead already exists : " + name);
+		}
+		BulkheadExecutor bulkhead = new BulkheadExecutor(name, threads, queueDepth, priority);
+		bulkheads.put(name, bulkhead);
+		for(BulkheadExecutor b:bulkheads.values()){
+			b.setHigherPriority(bulkheads.values().stream().filter(e->e.getPriority() > b.getPriority()).collect(Collectors.toList()));
+		}
+		logger.debug("### Bulkhead added : " + bulkhead);
+		return bulkhead;
+	}
+	/**
+	 * 登録済バルクヘッドの参照.
+	 * @return BulkheadExecutor の読取専用 Collection
+	 */
+	public Collection<BulkheadExecutor> getBulkheads(){
+		return Collections.unmodifiableCollection(bulkheads.values());
+	}
+	/**
+	 * リクエストURIに割り当てたバルクヘッドの取得.
+	 * @param request HttpServletRequest
+	 * @return BulkheadExecutor、割り当てていない場合は null
+	 */
+	BulkheadExecutor getBulkhead(HttpServletRequest request){
+		return routeBulkheads.get(request.getRequestURI());
+	}
+	/**
+	 * リクエストURIのタイムアウト取得.
+	 * @param request HttpServletRequest
+	 * @return タイムアウト（ミリ秒）、指定していない場合は 0
+	 */
+	long getTimeout(HttpServletRequest request){
+		Long timeout = routeTimeouts.get(request.getRequestURI());
+		return timeout==null ? 0L : timeout;
+	}
+	/**
+	 * 登録済の全URIのサーキットブレーカー生成.
+	 * @param factory CircuitBreaker の生成
+	 */
+	void createCircuitBreakers(Supplier<CircuitBreaker> factory){
+		map.keySet().forEach(uri->breakers.put(uri, factory.get()));
+	}
+	/**
+	 * URIのサーキットブレーカーの参照.
+	 * @param uriPath WebコンテキストからのURIパス文字列
+	 * @return CircuitBreaker、JacobFilter の初期化パラメータ breakerFailureRate を指定していない場合は null
+	 */
+	public CircuitBreaker getCircuitBreaker(String uriPath){
+		return breakers.get(uriPath);
+	}
+	/**
+	 * 実行スレッドへの HttpServletResponse の割当.
+	 * <pre>{@link Response} のフィールドと {@link #response} は、割り当てた HttpServletResponse に委譲する。</pre>
+	 * @param response HttpServletResponse、null で割当解除
+	 */
+	static void attachResponse(HttpServletResponse response){
+		if (response==null){
+			CURRENT_RESPONSE.remove();
+		}else{
+			CURRENT_RESPONSE.set(response);
+		}
+	}
+	/**
+	 * 実行スレッドの HttpServletResponse に委譲する HttpServletResponse の生成.
+	 */
+	private static HttpServletResponse threadBoundResponse(){
+		return (HttpServletResponse)Proxy.newProxyInstance(RequestTranslater.class.getClassLoader(), new Class<?>[]{ HttpServletResponse.class },
+			(proxy, method, args)->{
+				if (method.getDeclaringClass()==Object.class){
+					switch(method.getName()){
+					case "equals": return proxy==args[0];
+					case "hashCode": return System.identityHashCode(proxy);
+					default: return "HttpServletResponse[" + CURRENT_RESPONSE.get() + "]";
+					}
+				}
+				HttpServletResponse target = CURRENT_RESPONSE.get();
+				if (target==null){
+					throw new IllegalStateException("HttpServletResponse is available only while the request is processed");
+				}
+				try{
+					return method.invoke(target, args);
+				}catch(InvocationTargetException e){
+					throw e.getCause();
+				}
+			});
+	}
+	/**
+	 * バルクヘッドと {@link NdjsonResponder} のスレッドプールの停止.
+	 */
+	void shutdown(){
+		bulkheads.values().forEach(BulkheadExecutor::shutdown);
+		map.values().stream().filter(e->e instanceof NdjsonResponder).forEach(e->((NdjsonResponder)e).shutdown());
+	}
 	/**
 	 * Google guice インジェクトModule設定.
 	 * <br/>guice インジェクト用の Moduleを設定する。
@@ -118,16 +315,10 @@ public final class RequestTranslater implements JsonResponder{
 	public String answer(HttpServletRequest request){
 		httpstatus = 404;
 		String uriStr = request.getRequestURI();
-		if (map.containsKey(uriStr)){
+		JsonResponder jsonResponder = map.get(uriStr);
+		RequestTrace.markCurrent(RequestTrace.Phase.ROUTE);
+		if (jsonResponder != null){
 			httpstatus = 200;
-			JsonResponder jsonResponder = map.get(uriStr);
-			if (responseFiledMap.containsKey(uriStr)){
-				try{
-					responseFiledMap.get(uriStr).set(jsonResponder, response);
-				}catch(SecurityException | IllegalArgumentException | IllegalAccessException e){
-					logger.warn(e.getMessage(), e );
-				}
-			}
 			String content = jsonResponder.answer(request);
 			httpstatus = jsonResponder.getStatus(request);
 			return content;
@@ -136,8 +327,11 @@ public final class RequestTranslater implements JsonResponder{
 	}
 	/**
 	 * HttpServletResponse.
+	 * <pre>JsonResponder のインスタンスは全リクエストで共有するので、処理中のスレッドのリクエストの
+	 * HttpServletResponse に委譲する。処理期限を過ぎた後も実行中のスレッドが、他のリクエストの応答に書くことはない。
+	 * リクエストの処理中以外に使用すると IllegalStateException になる。</pre>
 	 */
-	protected HttpServletResponse response;
+	protected final HttpServletResponse response = threadBoundResponse();
 
 	/* @see org.jacob.JsonResponder#getStatus() */
 	@Override
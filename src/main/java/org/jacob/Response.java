@@ -8,6 +8,8 @@ import java.lang.annotation.Target;
 /**
  * HttpServletResponseアノテーション.
  * {@link JsonResponder} 実装クラス内で、@Response を付与したフィールドは、HttpServletResponseがセットされる。<br/>
+ * JsonResponder のインスタンスは全リクエストで共有するので、セットされるのは処理中のスレッドのリクエストの
+ * HttpServletResponse に委譲するオブジェクトで、リクエストの処理中だけ使用できる。<br/>
  * <pre>
  *  （使い方）
  *
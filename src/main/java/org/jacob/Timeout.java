@@ -0,0 +1,30 @@
+package org.jacob;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * タイムアウト指定アノテーション.
+ * {@link JsonResponder} 実装クラスに @Timeout を付与すると、{@link RequestTranslater#add(String, Class)} で
+ * 登録した URI の処理時間の上限（ミリ秒）になる。超えた場合、処理の終了を待たずに HTTP 504 を返す。
+ * バルクヘッドの無いURIでは、処理が戻るまでWebコンテナのスレッドは占有される。<br/>
+ * <pre>
+ *  （使い方）
+ *
+ *      ＠Timeout(3000)
+ *      public class LookupResponder implements JsonResponder{
+ *          ：
+ *
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Timeout{
+	/**
+	 * タイムアウト（ミリ秒）
+	 * @return タイムアウト
+	 */
+	long value();
+}
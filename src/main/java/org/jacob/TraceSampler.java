@@ -0,0 +1,111 @@
+package org.jacob;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * 低速リクエストのサンプラー.
+ * <pre>
+ * 処理中のリクエストの {@link RequestTrace} を保持し、ウォッチドッグスレッドが定期的に
+ * 閾値を超えたリクエストのワーカースレッドのスタックを採取する。
+ * 閾値を超えて終了したリクエストのトレースは、上限付きのバッファに新しい順に保持され、
+ * JsonResponder として診断用URIから JSON で返却する。
+ * 閾値以下のリクエストは、System.nanoTime() の記録だけでスタック採取もバッファ格納もしない。
+ * </pre>
+ */
+final class TraceSampler implements JsonResponder{
+	private final long thresholdNanos;
+	private final int bufferSize;
+	private final Set<RequestTrace> active = ConcurrentHashMap.newKeySet();
+	private final Deque<RequestTrace> slowTraces = new ArrayDeque<RequestTrace>();
+	private final ScheduledExecutorService watchdog;
+
+	/**
+	 * コンストラクタ.
+	 * @param thresholdMillis 低速と判定する処理時間（ミリ秒）
+	 * @param bufferSize 保持する低速トレースの上限数
+	 * @param sampleIntervalMillis ウォッチドッグのスタック採取間隔（ミリ秒）
+	 * @param name ウォッチドッグのスレッド名
+	 */
+	TraceSampler(long thresholdMillis, int bufferSize, long sampleIntervalMillis, String name){
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this.bufferSize = bufferSize;
+		watchdog = Executors.newSingleThreadScheduledExecutor(r->{
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		});
+		watchdog.scheduleAtFixedRate(this::sample, sampleIntervalMillis, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	/**
+	 * トレース開始.
+	 * @param request HttpServletRequest
+	 * @return RequestTrace
+	 */
+	RequestTrace begin(HttpServletRequest request){
+		RequestTrace trace = new RequestTrace(request.getMethod(), request.getRequestURI());
+		active.add(trace);
+		return trace;
+	}
+	/**
+	 * トレース終了.
+	 * <pre>閾値を超えていれば、低速トレースのバッファに格納する。既に終了している場合は何もしない。</pre>
+	 * @param trace RequestTrace
+	 */
+	void end(RequestTrace trace){
+		if (!trace.finish()) return;
+		active.remove(trace);
+		if (trace.elapsedNanos(0L) < thresholdNanos) return;
+		synchronized(slowTraces){
+			slowTraces.addFirst(trace);
+			while(slowTraces.size() > bufferSize){
+				slowTraces.removeLast();
+			}
+		}
+	}
+	private void sample(){
+		long now = System.nanoTime();
+		for(RequestTrace trace:active){
+			if (trace.elapsedNanos(now) >= thresholdNanos){
+				trace.sampleStack();
+			}
+		}
+	}
+	/**
+	 * ウォッチドッグの停止.
+	 */
+	void shutdown(){
+		watchdog.shutdownNow();
+	}
+	/**
+	 * 低速トレース一覧のJSON.
+	 * @param request HttpServletRequest
+	 * @return {"threshold":閾値ミリ秒,"active":処理中件数,"traces":[...]}
+	 */
+	@Override
+	public String answer(HttpServletRequest request){
+		List<RequestTrace> list;
+		synchronized(slowTraces){
+			list = new ArrayList<RequestTrace>(slowTraces);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"threshold\":").append(TimeUnit.NANOSECONDS.toMillis(thresholdNanos))
+		.append(",\"active\":").append(active.size())
+		.append(",\"traces\":[");
+		String sep = "";
+		for(RequestTrace trace:list){
+			sb.append(sep).append(trace.toJson());
+			sep = ",";
+		}
+		return sb.append("]}").toString();
+	}
+}
@@ -68,6 +68,45 @@
  *    OPTIONS は、JsonResponder でハンドリングされることはなくそのままレスポンス応答する
  * </pre>
  * <hr/>
+ * <h4>低速リクエストのトレース</h4>
+ * <pre>
+ * init-param の traceThreshold（ミリ秒）を指定すると、リクエスト毎に処理フェーズ
+ *   route（URI振り分け）, answer（JsonResponder 実行）, encode（バイト変換）, write（書込み）
+ * の所要時間を記録する。指定しない場合は記録しない。
+ * write は応答を flushBuffer で送信し終えるまでの時間で、記録する場合は応答をフィルタ内で送信する。
+ * 閾値を超えたリクエストは、ウォッチドッグが traceSampleInterval（ミリ秒、デフォルト 100）間隔で
+ * ワーカースレッドのスタックを採取し、終了後にトレースを traceBufferSize（デフォルト 100）件まで保持する。
+ * 保持したトレースは、tracePath で指定したURIへのリクエストで JSON として返却される。
+ * JsonResponder 実装から子スパンを記録するには {@link org.jacob.RequestTrace#span(String)} を使用する。
+ *
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;traceThreshold&lt;/param-name&gt;
+ *         &lt;param-value&gt;500&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;tracePath&lt;/param-name&gt;
+ *         &lt;param-value&gt;/sample/json/diag/traces&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ * </pre>
+ * <hr/>
+ * <h4>タイムアウトとサーキットブレーカー</h4>
+ * <pre>
+ * init-param の timeout（ミリ秒）は、URI毎のタイムアウト（{@link org.jacob.RequestTranslater#add(String, Class, String, long)}、
+ * {@link org.jacob.Timeout}）を指定していないURIのタイムアウトである。
+ * リクエストヘッダ deadlineHeader（デフォルト X-Request-Timeout、ミリ秒）は、それより短い場合だけ優先し、
+ * タイムアウトの無いURIにヘッダだけで期限を設けることはできない。
+ * タイムアウトを過ぎると HTTP 504 を返し、JsonResponder を実行しているスレッドに割込みをかける。
+ * バルクヘッドの無いURIは、別スレッドに渡さずコンテナのスレッドのまま実行し、期限で 504 を送信してから割込みをかける。
+ * 割込みに応じない処理（ソケットの読込み等）でも 504 は期限で届くが、コンテナのスレッドは処理が戻るまで占有される。
+ * コンテナのスレッドを解放するには、バルクヘッドを割り当てて Filter を async-supported にする。
+ * 残り時間は {@link org.jacob.Deadline#current()} で参照できる。
+ *
+ * init-param の breakerFailureRate（0.0 ～ 1.0）を指定すると、URI毎にサーキットブレーカーを生成し、
+ * breakerWindow（ミリ秒、デフォルト 10000）内の件数が breakerMinCalls（デフォルト 20）以上で失敗率を超えると、
+ * breakerOpenTime（ミリ秒、デフォルト 5000）の間 HTTP 503 で即座に応答する。
+ * breakerSlowCall（ミリ秒）を指定すると、それ以上の処理時間も失敗とみなす。
+ * </pre>
+ * <hr/>
  * <h4>Install</h4>
  * <pre>
  * mvn install:install-file -Dfile=path/jacob-1.0.jar -DgroupId=org.jacob -DartifactId=jacob -Dversion=1.0 -Dpackaging=jar -DgeneratePom=true
@@ -111,6 +150,14 @@
  *
  * </pre>
  * <hr/>
+ * <h4>複数の JacobApplication</h4>
+ * <pre>
+ * 1つのWebアプリケーションに、applicationClassName の異なる JacobFilter を複数定義できる。
+ * URI振り分け（RequestTranslater）、guice の Injector、バルクヘッド、サーキットブレーカー、
+ * トレースのバッファ、処理期限のウォッチドッグは JacobFilter 毎に独立している。
+ * スレッド名には filter-name が付与される。
+ * </pre>
+ * <hr/>
  * <h4>ServletContext の取得</h4>
  * <pre>
  * JacobApplication 継承クラスは、ServletContext を取得する場合、JacobApplication から getServletContext()が提供されているが、
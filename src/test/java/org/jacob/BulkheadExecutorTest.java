@@ -0,0 +1,109 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * BulkheadExecutor の受付拒否、待ち時間、優先度.
+ */
+public class BulkheadExecutorTest{
+
+	@Test(timeout=10000)
+	public void rejectsWhenQueueIsFull() throws Exception{
+		BulkheadExecutor bulkhead = new BulkheadExecutor("full", 1, 1, 0);
+		CountDownLatch release = new CountDownLatch(1);
+		try{
+			CountDownLatch running = new CountDownLatch(1);
+			bulkhead.execute(()->block(running, release));
+			running.await();
+			bulkhead.execute(()->{});
+			try{
+				bulkhead.execute(()->{});
+				fail("accepted over queueDepth");
+			}catch(RejectedExecutionException e){
+			}
+			assertEquals(1L, bulkhead.getRejectedCount());
+			assertEquals(0L, bulkhead.getShedCount());
+			assertEquals(1, bulkhead.getQueueSize());
+		}finally{
+			release.countDown();
+			bulkhead.shutdown();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void measuresQueueWait() throws Exception{
+		BulkheadExecutor bulkhead = new BulkheadExecutor("wait", 1, 10, 0);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		try{
+			CountDownLatch running = new CountDownLatch(1);
+			bulkhead.execute(()->block(running, release));
+			running.await();
+			bulkhead.execute(done::countDown);
+			Thread.sleep(100);
+			release.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			for(int i=0; i < 100 && bulkhead.getCompletedCount() < 2L; i++){
+				Thread.sleep(10);
+			}
+			assertEquals(2L, bulkhead.getCompletedCount());
+			assertTrue(bulkhead.toString(), bulkhead.getMaxQueueWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(90));
+			assertTrue(bulkhead.toString(), bulkhead.getQueueWaitNanos() >= bulkhead.getMaxQueueWaitNanos());
+		}finally{
+			release.countDown();
+			bulkhead.shutdown();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void shedsLowerPriorityWhileHigherIsWaiting() throws Exception{
+		BulkheadExecutor high = new BulkheadExecutor("high", 1, 10, 10);
+		BulkheadExecutor low = new BulkheadExecutor("low", 1, 10, 0);
+		low.setHigherPriority(Collections.singletonList(high));
+		CountDownLatch release = new CountDownLatch(1);
+		try{
+			CountDownLatch lowRunning = new CountDownLatch(1);
+			low.execute(()->block(lowRunning, release));
+			lowRunning.await();
+			// 優先度の高い側に実行待ちが無い間は、待ち行列に入れる
+			low.execute(()->{});
+			assertEquals(1, low.getQueueSize());
+			CountDownLatch highRunning = new CountDownLatch(1);
+			high.execute(()->block(highRunning, release));
+			highRunning.await();
+			high.execute(()->{});
+			try{
+				low.execute(()->{});
+				fail("accepted while higher priority is waiting");
+			}catch(RejectedExecutionException e){
+			}
+			assertEquals(1L, low.getShedCount());
+			assertEquals(1L, low.getRejectedCount());
+			// 優先度の高い側は影響を受けない
+			high.execute(()->{});
+			assertEquals(0L, high.getRejectedCount());
+		}finally{
+			release.countDown();
+			high.shutdown();
+			low.shutdown();
+		}
+	}
+
+	private static void block(CountDownLatch running, CountDownLatch release){
+		running.countDown();
+		try{
+			release.await(5, TimeUnit.SECONDS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+}
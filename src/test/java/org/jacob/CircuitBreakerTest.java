@@ -0,0 +1,163 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jacob.CircuitBreaker.Permit;
+import org.junit.Test;
+
+/**
+ * CircuitBreaker の状態遷移.
+ */
+public class CircuitBreakerTest{
+
+	private static CircuitBreaker open(long openMillis){
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, openMillis, 60000L);
+		for(int i=0; i < 4; i++){
+			breaker.record(breaker.allow(), true, 0L);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		return breaker;
+	}
+	private static Permit probe(CircuitBreaker breaker) throws InterruptedException{
+		Thread.sleep(80);
+		Permit permit = breaker.allow();
+		assertNotNull(permit);
+		assertTrue(permit.isProbe());
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		return permit;
+	}
+
+	@Test
+	public void opensAtFailureRateAfterMinCalls(){
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, 60000L, 60000L);
+		breaker.record(breaker.allow(), false, 0L);
+		breaker.record(breaker.allow(), true, 0L);
+		breaker.record(breaker.allow(), true, 0L);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Permit permit = breaker.allow();
+		assertNotNull(permit);
+		assertFalse(permit.isProbe());
+		breaker.record(permit, false, 0L);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.record(breaker.allow(), true, 0L);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertNull(breaker.allow());
+		assertNull(breaker.allow());
+		assertEquals(2L, breaker.getRejectedCount());
+	}
+
+	@Test
+	public void slowCallCountsAsFailure(){
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 2, 10L, 60000L, 60000L);
+		breaker.record(breaker.allow(), false, TimeUnit.MILLISECONDS.toNanos(5));
+		breaker.record(breaker.allow(), false, TimeUnit.MILLISECONDS.toNanos(5));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.record(breaker.allow(), false, TimeUnit.MILLISECONDS.toNanos(20));
+		breaker.record(breaker.allow(), false, TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void windowStartsOver() throws Exception{
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, 60000L, 50L);
+		breaker.record(breaker.allow(), true, 0L);
+		breaker.record(breaker.allow(), true, 0L);
+		breaker.record(breaker.allow(), true, 0L);
+		Thread.sleep(80);
+		breaker.record(breaker.allow(), true, 0L);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void allowsOneProbeAfterOpenTime() throws Exception{
+		CircuitBreaker breaker = open(50L);
+		assertNull(breaker.allow());
+		probe(breaker);
+		assertNull(breaker.allow());
+	}
+
+	@Test
+	public void successfulProbeCloses() throws Exception{
+		CircuitBreaker breaker = open(50L);
+		breaker.record(probe(breaker), false, 0L);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		// 閉じた時点で失敗率の計測をやり直す
+		breaker.record(breaker.allow(), true, 0L);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertNotNull(breaker.allow());
+	}
+
+	@Test
+	public void failedProbeReopens() throws Exception{
+		CircuitBreaker breaker = open(50L);
+		breaker.record(probe(breaker), true, 0L);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertNull(breaker.allow());
+		probe(breaker);
+	}
+
+	@Test
+	public void callFromBeforeOpenDoesNotDecideProbe() throws Exception{
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, 50L, 60000L);
+		Permit inFlight = breaker.allow();
+		for(int i=0; i < 4; i++){
+			breaker.record(breaker.allow(), true, 0L);
+		}
+		Permit probe = probe(breaker);
+		breaker.record(inFlight, false, 0L);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.record(inFlight, true, 0L);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.record(probe, true, 0L);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void lateFailuresDoNotExtendOpenTime() throws Exception{
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, 100L, 60000L);
+		Permit[] inFlight = new Permit[10];
+		for(int i=0; i < inFlight.length; i++){
+			inFlight[i] = breaker.allow();
+		}
+		for(int i=0; i < 4; i++){
+			breaker.record(inFlight[i], true, 0L);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Thread.sleep(60);
+		for(int i=4; i < inFlight.length; i++){
+			breaker.record(inFlight[i], true, 0L);
+		}
+		Thread.sleep(60);
+		assertNotNull(breaker.allow());
+	}
+
+	@Test
+	public void abandonedProbeIsRetried() throws Exception{
+		CircuitBreaker breaker = open(50L);
+		breaker.abandon(probe(breaker));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Permit retry = breaker.allow();
+		assertNotNull(retry);
+		assertTrue(retry.isProbe());
+	}
+
+	@Test
+	public void abandonIgnoresNormalPermit() throws Exception{
+		CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 0L, 50L, 60000L);
+		Permit normal = breaker.allow();
+		breaker.abandon(normal);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		for(int i=0; i < 4; i++){
+			breaker.record(breaker.allow(), true, 0L);
+		}
+		probe(breaker);
+		breaker.abandon(normal);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+}
@@ -0,0 +1,110 @@
+package org.jacob;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Map;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * テスト用の組込み Jetty.
+ * <pre>
+ * 空きポートで起動し、登録した JacobFilter の後ろには何も応答しないサーブレットを置く。
+ *
+ *    EmbeddedJetty jetty = new EmbeddedJetty();
+ *    jetty.addFilter("test", "/*", SampleApplication.class, params);
+ *    jetty.start();
+ *    URL url = jetty.url("/sample/json/sales");
+ *    jetty.stop();
+ * </pre>
+ */
+public final class EmbeddedJetty{
+	private final Server server = new Server(0);
+	private final ServletContextHandler context = new ServletContextHandler();
+
+	/**
+	 * コンストラクタ.
+	 */
+	public EmbeddedJetty(){
+		context.setContextPath("/");
+	}
+	/**
+	 * 非同期処理をサポートする JacobFilter の登録.
+	 * @param name filter-name
+	 * @param urlPattern url-pattern
+	 * @param applicationClass JacobApplication 継承クラス
+	 * @param initParams applicationClassName 以外の init-param
+	 * @return this
+	 */
+	public EmbeddedJetty addFilter(String name, String urlPattern, Class<? extends JacobApplication> applicationClass, Map<String, String> initParams){
+		FilterHolder holder = new FilterHolder(JacobFilter.class);
+		holder.setName(name);
+		holder.setAsyncSupported(true);
+		holder.setInitParameter("applicationClassName", applicationClass.getName());
+		initParams.forEach(holder::setInitParameter);
+		context.addFilter(holder, urlPattern, EnumSet.of(DispatcherType.REQUEST));
+		return this;
+	}
+	/**
+	 * 起動.
+	 * @throws Exception 起動に失敗した場合
+	 */
+	public void start() throws Exception{
+		context.addServlet(new ServletHolder(new HttpServlet(){
+			private static final long serialVersionUID = 1L;
+		}), "/*");
+		server.setHandler(context);
+		server.start();
+	}
+	/**
+	 * 停止.
+	 * @throws Exception 停止に失敗した場合
+	 */
+	public void stop() throws Exception{
+		server.stop();
+	}
+	/**
+	 * 待受ポート.
+	 * @return ポート番号
+	 */
+	public int getPort(){
+		return ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+	}
+	/**
+	 * URL生成.
+	 * @param path URIパス
+	 * @return http://localhost:ポート/パス
+	 * @throws IOException URLが不正な場合
+	 */
+	public URL url(String path) throws IOException{
+		return new URL("http://localhost:" + getPort() + path);
+	}
+	/**
+	 * 応答ボディの読込み.
+	 * @param in 応答ボディ
+	 * @return UTF-8 の文字列
+	 * @throws IOException 読込みに失敗した場合
+	 */
+	public static String read(InputStream in) throws IOException{
+		try(InputStream is = in){
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[1024];
+			int n;
+			while((n=is.read(b)) >= 0){
+				out.write(b, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
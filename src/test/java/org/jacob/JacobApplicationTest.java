@@ -0,0 +1,88 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 1つのコンテキストに複数の JacobApplication.
+ */
+public class JacobApplicationTest{
+	private EmbeddedJetty jetty;
+
+	/** /a/* を受け持つ。/b/stray は B のフィルタには渡らない */
+	public static class ApplicationA extends JacobApplication{
+		@Override
+		public JsonResponder init(){
+			RequestTranslater translater = getRequestTranslater();
+			translater.addBulkhead("pool", 1, 10);
+			translater.add("/a/name", NameA.class, "pool", 0L);
+			translater.add("/b/stray", NameA.class);
+			return translater;
+		}
+	}
+
+	/** /b/* を受け持つ。ルート表が共有されていれば、同じ名前のバルクヘッドの登録で初期化に失敗する */
+	public static class ApplicationB extends JacobApplication{
+		@Override
+		public JsonResponder init(){
+			RequestTranslater translater = getRequestTranslater();
+			translater.addBulkhead("pool", 1, 10);
+			translater.add("/b/name", NameB.class, "pool", 0L);
+			return translater;
+		}
+	}
+
+	public static class NameA implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			return "{\"app\":\"A\"}";
+		}
+	}
+
+	public static class NameB implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			return "{\"app\":\"B\"}";
+		}
+	}
+
+	@Before
+	public void start() throws Exception{
+		jetty = new EmbeddedJetty()
+			.addFilter("a", "/a/*", ApplicationA.class, Collections.<String, String>emptyMap())
+			.addFilter("b", "/b/*", ApplicationB.class, Collections.<String, String>emptyMap());
+		jetty.start();
+	}
+
+	@After
+	public void stop() throws Exception{
+		jetty.stop();
+	}
+
+	@Test
+	public void eachFilterServesOnlyItsOwnRoutes() throws Exception{
+		HttpURLConnection con = get("/a/name");
+		assertEquals(200, con.getResponseCode());
+		assertEquals("{\"app\":\"A\"}", EmbeddedJetty.read(con.getInputStream()));
+		con = get("/b/name");
+		assertEquals(200, con.getResponseCode());
+		assertEquals("{\"app\":\"B\"}", EmbeddedJetty.read(con.getInputStream()));
+		assertEquals(404, get("/b/stray").getResponseCode());
+		assertEquals(404, get("/a/missing").getResponseCode());
+	}
+
+	private HttpURLConnection get(String path) throws IOException{
+		HttpURLConnection con = (HttpURLConnection)jetty.url(path).openConnection();
+		con.setReadTimeout(10000);
+		return con;
+	}
+}
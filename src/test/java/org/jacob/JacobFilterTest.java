@@ -0,0 +1,326 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JacobFilter の処理期限.
+ */
+public class JacobFilterTest{
+	private EmbeddedJetty jetty;
+
+	public static class TestApplication extends JacobApplication{
+		static volatile BulkheadExecutor narrow;
+		@Override
+		public JsonResponder init(){
+			RequestTranslater translater = getRequestTranslater();
+			translater.addBulkhead("slow", 2, 10);
+			narrow = translater.addBulkhead("narrow", 1, 1);
+			translater.add("/t/plain", PlainResponder.class);
+			translater.add("/t/short", ShortResponder.class);
+			translater.add("/t/slow", SlowResponder.class);
+			translater.add("/t/slow-bulkhead", SlowResponder.class, "slow", 200L);
+			translater.add("/t/late", LateResponder.class, "slow", 100L);
+			translater.add("/t/writer", WriterResponder.class);
+			translater.add("/t/busy", BusyResponder.class, null, 100L);
+			translater.add("/t/writer-deadline", WriterResponder.class, null, 5000L);
+			translater.add("/t/reader", ReaderResponder.class, null, 5000L);
+			translater.add("/t/held", HeldResponder.class, "narrow", 0L);
+			return translater;
+		}
+	}
+
+	/** 処理期限の有無と実行スレッドを返す */
+	public static class PlainResponder implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			Deadline deadline = Deadline.current();
+			return "{\"deadline\":" + (deadline==null ? "null" : Long.toString(deadline.getTimeoutMillis()))
+				+ ",\"thread\":" + RequestTrace.quote(Thread.currentThread().getName()) + "}";
+		}
+	}
+
+	@Timeout(5000)
+	public static class ShortResponder extends PlainResponder{
+	}
+
+	/** 割込みまで待つ */
+	@Timeout(200)
+	public static class SlowResponder implements JsonResponder{
+		static volatile CountDownLatch interrupted = new CountDownLatch(1);
+		@Override
+		public String answer(HttpServletRequest request){
+			try{
+				Thread.sleep(10000);
+			}catch(InterruptedException e){
+				interrupted.countDown();
+				Thread.currentThread().interrupt();
+			}
+			return "{\"slow\":true}";
+		}
+	}
+
+	/** 割込みを無視して期限後に request, response を使う */
+	public static class LateResponder implements JsonResponder{
+		static volatile CountDownLatch refused = new CountDownLatch(2);
+		@Response
+		private HttpServletResponse response;
+		@Override
+		public String answer(HttpServletRequest request){
+			long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+			while(System.nanoTime() < end){
+				Thread.interrupted();
+			}
+			try{
+				request.getInputStream();
+			}catch(IOException e){
+				refused.countDown();
+			}
+			try{
+				response.getOutputStream().write('x');
+			}catch(IOException e){
+				refused.countDown();
+			}
+			response.setStatus(200);
+			return "{\"late\":true}";
+		}
+	}
+
+	/** 割込みに応じずに 2秒かかる */
+	public static class BusyResponder implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+			while(System.nanoTime() < end){
+				Thread.interrupted();
+			}
+			return "{\"busy\":true}";
+		}
+	}
+
+	/** &#064;Response の getWriter() で応答を書く */
+	public static class WriterResponder implements JsonResponder{
+		@Response
+		private HttpServletResponse response;
+		@Override
+		public String answer(HttpServletRequest request){
+			try{
+				response.getWriter().print("{\"a\":");
+				response.getWriter().print("1}");
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		}
+	}
+
+	/** getReader() を複数回呼んでリクエストボディを読む */
+	public static class ReaderResponder implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			try{
+				StringBuilder sb = new StringBuilder();
+				sb.append((char)request.getReader().read());
+				String line;
+				while((line=request.getReader().readLine()) != null){
+					sb.append(line);
+				}
+				return "{\"body\":" + RequestTrace.quote(sb.toString()) + "}";
+			}catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** 解放されるまで待つ */
+	public static class HeldResponder implements JsonResponder{
+		static volatile CountDownLatch entered = new CountDownLatch(1);
+		static volatile CountDownLatch release = new CountDownLatch(1);
+		@Override
+		public String answer(HttpServletRequest request){
+			entered.countDown();
+			try{
+				release.await(5, TimeUnit.SECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			return "{\"held\":true}";
+		}
+	}
+
+	@Before
+	public void start() throws Exception{
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("traceThreshold", "50");
+		params.put("traceSampleInterval", "10");
+		params.put("tracePath", "/t/traces");
+		jetty = new EmbeddedJetty().addFilter("test", "/*", TestApplication.class, params);
+		jetty.start();
+		SlowResponder.interrupted = new CountDownLatch(1);
+		LateResponder.refused = new CountDownLatch(2);
+		HeldResponder.entered = new CountDownLatch(1);
+		HeldResponder.release = new CountDownLatch(1);
+	}
+
+	@After
+	public void stop() throws Exception{
+		jetty.stop();
+	}
+
+	@Test
+	public void headerAloneSetsNoDeadline() throws Exception{
+		HttpURLConnection con = get("/t/plain", "10");
+		assertEquals(200, con.getResponseCode());
+		assertTrue(body(con).startsWith("{\"deadline\":null,"));
+	}
+
+	@Test
+	public void headerShortensRouteDeadline() throws Exception{
+		HttpURLConnection con = get("/t/short", "100");
+		assertEquals(200, con.getResponseCode());
+		String body = body(con);
+		assertTrue(body, body.startsWith("{\"deadline\":100,"));
+		assertFalse(body, body.contains("\"jacob-"));
+		con = get("/t/short", "60000");
+		assertEquals(200, con.getResponseCode());
+		assertTrue(body(con).startsWith("{\"deadline\":5000,"));
+	}
+
+	@Test
+	public void inlineDeadlineInterruptsContainerThread() throws Exception{
+		long begin = System.nanoTime();
+		HttpURLConnection con = get("/t/slow", null);
+		assertEquals(504, con.getResponseCode());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 5000L);
+		assertTrue(SlowResponder.interrupted.await(5, TimeUnit.SECONDS));
+		for(int i=0; i < 20; i++){
+			HttpURLConnection next = get("/t/plain", null);
+			assertEquals(200, next.getResponseCode());
+			body(next);
+		}
+	}
+
+	@Test
+	public void inlineDeadlineAnswersBeforeResponderReturns() throws Exception{
+		long begin = System.nanoTime();
+		HttpURLConnection con = get("/t/busy", null);
+		assertEquals(504, con.getResponseCode());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 1000L);
+		assertEquals("0", con.getHeaderField("Content-Length"));
+	}
+
+	@Test
+	public void bulkheadDeadlineAnswers504() throws Exception{
+		long begin = System.nanoTime();
+		HttpURLConnection con = get("/t/slow-bulkhead", null);
+		assertEquals(504, con.getResponseCode());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 5000L);
+		assertTrue(SlowResponder.interrupted.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void workerCannotUseRequestAfterTimeout() throws Exception{
+		HttpURLConnection con = get("/t/late", null);
+		assertEquals(504, con.getResponseCode());
+		assertTrue(LateResponder.refused.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void traceSamplesWorkerAfterTimeout() throws Exception{
+		HttpURLConnection con = get("/t/late", null);
+		assertEquals(504, con.getResponseCode());
+		assertTrue(LateResponder.refused.await(5, TimeUnit.SECONDS));
+		String traces = "";
+		for(int i=0; i < 50 && !traces.contains("\"uri\":\"/t/late\""); i++){
+			Thread.sleep(20);
+			HttpURLConnection diag = get("/t/traces", null);
+			traces = body(diag);
+		}
+		assertTrue(traces, traces.contains("\"events\":[{\"name\":\"timeout 504\""));
+		assertTrue(traces, traces.contains("LateResponder.answer"));
+		// 504 を返した 100ミリ秒以降もスタックを採取している
+		Matcher m = Pattern.compile("\\{\"offset\":([0-9.]+),\"frames\"").matcher(traces);
+		double last = 0.0;
+		while(m.find()){
+			last = Math.max(last, Double.parseDouble(m.group(1)));
+		}
+		assertTrue(traces, last > 150.0);
+	}
+
+	@Test
+	public void writerOutputIsKept() throws Exception{
+		for(String path:new String[]{ "/t/writer", "/t/writer-deadline" }){
+			HttpURLConnection con = get(path, null);
+			assertEquals(404, con.getResponseCode());
+			assertEquals(path, "{\"a\":1}", EmbeddedJetty.read(con.getErrorStream()));
+		}
+	}
+
+	@Test
+	public void readerIsSharedAcrossCalls() throws Exception{
+		HttpURLConnection con = get("/t/reader", null);
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		try(OutputStream out = con.getOutputStream()){
+			out.write("abcdef".getBytes(StandardCharsets.UTF_8));
+		}
+		assertEquals(200, con.getResponseCode());
+		assertEquals("{\"body\":\"abcdef\"}", body(con));
+	}
+
+	@Test(timeout=20000)
+	public void fullBulkheadQueueAnswers503() throws Exception{
+		ExecutorService clients = Executors.newFixedThreadPool(2);
+		try{
+			Future<Integer> running = clients.submit(()->get("/t/held", null).getResponseCode());
+			assertTrue(HeldResponder.entered.await(5, TimeUnit.SECONDS));
+			Future<Integer> queued = clients.submit(()->get("/t/held", null).getResponseCode());
+			for(int i=0; i < 250 && TestApplication.narrow.getQueueSize() < 1; i++){
+				Thread.sleep(20);
+			}
+			assertEquals(1, TestApplication.narrow.getQueueSize());
+			HttpURLConnection con = get("/t/held", null);
+			assertEquals(503, con.getResponseCode());
+			assertEquals(1L, TestApplication.narrow.getRejectedCount());
+			HeldResponder.release.countDown();
+			assertEquals(200, running.get().intValue());
+			assertEquals(200, queued.get().intValue());
+		}finally{
+			HeldResponder.release.countDown();
+			clients.shutdownNow();
+		}
+	}
+
+	private HttpURLConnection get(String path, String timeout) throws IOException{
+		HttpURLConnection con = (HttpURLConnection)jetty.url(path).openConnection();
+		con.setReadTimeout(10000);
+		if (timeout != null) con.setRequestProperty("X-Request-Timeout", timeout);
+		return con;
+	}
+	private static String body(HttpURLConnection con) throws IOException{
+		return EmbeddedJetty.read(con.getInputStream());
+	}
+}
@@ -0,0 +1,231 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+/**
+ * NdjsonResponder のレコード分割とバッチ処理.
+ */
+public class NdjsonResponderTest{
+
+	/** バッチ内のレコードを JSON 配列にして返す */
+	public static class EchoResponder extends NdjsonResponder{
+		public EchoResponder(){
+			super(3, 2, 16);
+		}
+		protected EchoResponder(int batchSize, int parallelism, int maxRecordLength, int maxBatchBytes, int maxBytesInFlight){
+			super(batchSize, parallelism, maxRecordLength, maxBatchBytes, maxBytesInFlight);
+		}
+		@Override
+		protected String processBatch(RecordBatch batch){
+			StringBuilder sb = new StringBuilder("[");
+			for(int i=0; i < batch.size(); i++){
+				if (i > 0) sb.append(',');
+				sb.append(batch.getString(i));
+			}
+			return sb.append(']').toString();
+		}
+	}
+
+	/** 件数だけを返す */
+	public static class CountResponder extends NdjsonResponder{
+		public CountResponder(){
+			super(100, 4);
+		}
+		@Override
+		protected String processBatch(RecordBatch batch){
+			for(int i=0; i < batch.size(); i++){
+				if (!batch.getString(i).equals("{\"n\":" + (batch.getFirstRecord() + i) + "}")){
+					throw new IllegalStateException("record " + (batch.getFirstRecord() + i));
+				}
+			}
+			return Integer.toString(batch.size());
+		}
+	}
+
+	/** バッチのバイト数と処理中のバイト数を指定する */
+	public static class ByteCapResponder extends EchoResponder{
+		public ByteCapResponder(int maxBatchBytes, int maxBytesInFlight){
+			super(100, 2, 16, maxBatchBytes, maxBytesInFlight);
+		}
+	}
+
+	@Test
+	public void splitsRecordsAcrossReadsAndBatches(){
+		String body = "{\"n\":0}\r\n{\"n\":1}\n\n{\"n\":2}\n{\"n\":3}\r\n\r\n{\"n\":4}";
+		HttpServletRequest request = request(body.getBytes(StandardCharsets.UTF_8), 5);
+		EchoResponder responder = new EchoResponder();
+		assertEquals("{\"records\":5,\"batches\":[[{\"n\":0},{\"n\":1},{\"n\":2}],[{\"n\":3},{\"n\":4}]]}", responder.answer(request));
+		assertEquals(200, responder.getStatus(request));
+	}
+
+	@Test
+	public void keepsRecordOrderOverManyBatches(){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i < 100000; i++){
+			sb.append("{\"n\":").append(i).append("}\n");
+		}
+		HttpServletRequest request = request(sb.toString().getBytes(StandardCharsets.UTF_8), 8192);
+		String result = new CountResponder().answer(request);
+		assertTrue(result, result.startsWith("{\"records\":100000,\"batches\":[100,100,"));
+		assertFalse(result, result.contains("error"));
+	}
+
+	@Test
+	public void splitsBatchAtMaxBatchBytes(){
+		String body = "{\"n\":0}\n{\"n\":1}\n{\"n\":2}\n{\"n\":3}\n{\"n\":4}\n";
+		HttpServletRequest request = request(body.getBytes(StandardCharsets.UTF_8), 5);
+		ByteCapResponder responder = new ByteCapResponder(20, 1024 * 1024);
+		assertEquals("{\"records\":5,\"batches\":[[{\"n\":0},{\"n\":1},{\"n\":2}],[{\"n\":3},{\"n\":4}]]}", responder.answer(request));
+	}
+
+	@Test(timeout=10000)
+	public void batchLargerThanBytesInFlightStillRuns(){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i < 1000; i++){
+			sb.append("{\"n\":").append(i).append("}\n");
+		}
+		HttpServletRequest request = request(sb.toString().getBytes(StandardCharsets.UTF_8), 4096);
+		// 処理中のバイト数の上限より大きいバッチも 1つずつ処理する
+		ByteCapResponder responder = new ByteCapResponder(20, 1);
+		String result = responder.answer(request);
+		assertTrue(result, result.startsWith("{\"records\":1000,\"batches\":[[{\"n\":0},{\"n\":1},{\"n\":2}],"));
+		assertEquals(200, responder.getStatus(request));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsBufferLargerThanArray(){
+		new ByteCapResponder(Integer.MAX_VALUE - 16, 1024);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void rejectsZeroBytesInFlight(){
+		new ByteCapResponder(20, 0);
+	}
+
+	@Test
+	public void rejectsRecordLongerThanMax(){
+		HttpServletRequest request = request("{\"n\":0}\n{\"name\":\"0123456789\"}\n".getBytes(StandardCharsets.UTF_8), 4);
+		EchoResponder responder = new EchoResponder();
+		String result = responder.answer(request);
+		assertEquals(413, responder.getStatus(request));
+		assertTrue(result, result.contains("\"record\":1"));
+	}
+
+	@Test
+	public void rejectsUnterminatedRecordWithoutBufferingIt(){
+		byte[] body = new byte[300 * 1024];
+		Arrays.fill(body, (byte)'x');
+		HttpServletRequest request = request(body, 8192);
+		EchoResponder responder = new EchoResponder();
+		responder.answer(request);
+		assertEquals(413, responder.getStatus(request));
+	}
+
+	@Test
+	public void reportsFailedBatch(){
+		HttpServletRequest request = request("{\"n\":0}\n{\"n\":9}\n".getBytes(StandardCharsets.UTF_8), 64);
+		String result = new CountResponder().answer(request);
+		assertTrue(result, result.contains("{\"batch\":0,\"error\":\"record 1\"}"));
+	}
+
+	@Test
+	public void stopsReadingAfterDeadline(){
+		HttpServletRequest request = request("{\"n\":0}\n{\"n\":1}\n".getBytes(StandardCharsets.UTF_8), 4);
+		EchoResponder responder = new EchoResponder();
+		Deadline.attach(new Deadline(0L));
+		try{
+			assertEquals("{\"error\":\"deadline exceeded\"}", responder.answer(request));
+		}finally{
+			Deadline.attach(null);
+		}
+		assertEquals(504, responder.getStatus(request));
+	}
+
+	@Test
+	public void stopsReadingWhenInterrupted(){
+		HttpServletRequest request = request("{\"n\":0}\n{\"n\":1}\n".getBytes(StandardCharsets.UTF_8), 4);
+		EchoResponder responder = new EchoResponder();
+		Thread.currentThread().interrupt();
+		try{
+			assertEquals("{\"error\":\"interrupted\"}", responder.answer(request));
+			assertTrue(Thread.currentThread().isInterrupted());
+		}finally{
+			Thread.interrupted();
+		}
+		assertEquals(503, responder.getStatus(request));
+	}
+
+	@Test
+	public void translaterShutdownStopsIngestThreads() throws Exception{
+		ServletContext context = (ServletContext)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ ServletContext.class }, (p, m, a)->null);
+		RequestTranslater translater = new RequestTranslater(context);
+		translater.add("/ingest", EchoResponder.class);
+		translater.answer(request("{\"n\":0}\n".getBytes(StandardCharsets.UTF_8), 64, "/ingest"));
+		assertTrue(ingestThreads() > 0);
+		translater.shutdown();
+		for(int i=0; i < 100 && ingestThreads() > 0; i++){
+			Thread.sleep(20);
+		}
+		assertEquals(0, ingestThreads());
+	}
+
+	private static int ingestThreads(){
+		return (int)Thread.getAllStackTraces().keySet().stream()
+			.filter(t->t.getName().startsWith("jacob-ingest-EchoResponder-") && t.isAlive()).count();
+	}
+
+	static HttpServletRequest request(byte[] body, int chunk){
+		return request(body, chunk, "/");
+	}
+	static HttpServletRequest request(byte[] body, int chunk, String uri){
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		ByteArrayInputStream in = new ByteArrayInputStream(body);
+		ServletInputStream stream = new ServletInputStream(){
+			@Override
+			public int read(){
+				return in.read();
+			}
+			@Override
+			public int read(byte[] b, int off, int len){
+				return in.read(b, off, Math.min(len, chunk));
+			}
+			@Override
+			public boolean isFinished(){
+				return in.available()==0;
+			}
+			@Override
+			public boolean isReady(){
+				return true;
+			}
+			@Override
+			public void setReadListener(ReadListener listener){
+			}
+		};
+		return (HttpServletRequest)Proxy.newProxyInstance(NdjsonResponderTest.class.getClassLoader(), new Class<?>[]{ HttpServletRequest.class }, (p, m, a)->{
+			switch(m.getName()){
+			case "getInputStream": return stream;
+			case "getRequestURI": return uri;
+			case "getMethod": return "POST";
+			case "getAttribute": return attributes.get(a[0]);
+			case "setAttribute": attributes.put((String)a[0], a[1]); return null;
+			default: return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,94 @@
+package org.jacob;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * RequestTranslater の &#064;Response フィールド.
+ */
+public class RequestTranslaterTest{
+
+	/** 1件目のリクエストだけ待たせてから &#064;Response にヘッダを書く */
+	public static class HeaderResponder implements JsonResponder{
+		static final CountDownLatch firstEntered = new CountDownLatch(1);
+		static final CountDownLatch releaseFirst = new CountDownLatch(1);
+		@Response
+		private HttpServletResponse response;
+		@Override
+		public String answer(HttpServletRequest request){
+			String id = request.getParameter("id");
+			if ("first".equals(id)){
+				firstEntered.countDown();
+				try{
+					releaseFirst.await(5, TimeUnit.SECONDS);
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+			response.setHeader("X-Id", id);
+			return "{}";
+		}
+	}
+
+	@Test(timeout=10000)
+	public void responseFieldIsBoundToEachRequest() throws Exception{
+		ServletContext context = (ServletContext)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ ServletContext.class }, (p, m, a)->null);
+		RequestTranslater translater = new RequestTranslater(context);
+		translater.add("/header", HeaderResponder.class);
+		Map<String, String> first = new ConcurrentHashMap<String, String>();
+		Map<String, String> second = new ConcurrentHashMap<String, String>();
+		ExecutorService threads = Executors.newFixedThreadPool(2);
+		try{
+			Future<?> slow = threads.submit(()->answer(translater, "first", first));
+			HeaderResponder.firstEntered.await();
+			threads.submit(()->answer(translater, "second", second)).get();
+			HeaderResponder.releaseFirst.countDown();
+			slow.get();
+		}finally{
+			threads.shutdownNow();
+		}
+		assertEquals("first", first.get("X-Id"));
+		assertEquals("second", second.get("X-Id"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void responseFieldOutsideRequestFails(){
+		ServletContext context = (ServletContext)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ ServletContext.class }, (p, m, a)->null);
+		assertNull(new RequestTranslater(context).response.getHeader("X-Id"));
+	}
+
+	private static void answer(RequestTranslater translater, String id, Map<String, String> headers){
+		HttpServletRequest request = (HttpServletRequest)Proxy.newProxyInstance(RequestTranslaterTest.class.getClassLoader(), new Class<?>[]{ HttpServletRequest.class }, (p, m, a)->{
+			switch(m.getName()){
+			case "getRequestURI": return "/header";
+			case "getParameter": return id;
+			default: return null;
+			}
+		});
+		HttpServletResponse response = (HttpServletResponse)Proxy.newProxyInstance(RequestTranslaterTest.class.getClassLoader(), new Class<?>[]{ HttpServletResponse.class }, (p, m, a)->{
+			if ("setHeader".equals(m.getName())) headers.put((String)a[0], (String)a[1]);
+			return null;
+		});
+		RequestTranslater.attachResponse(response);
+		try{
+			translater.answer(request);
+		}finally{
+			RequestTranslater.attachResponse(null);
+		}
+	}
+}
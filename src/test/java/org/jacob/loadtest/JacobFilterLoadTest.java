@@ -0,0 +1,88 @@
+package org.jacob.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jacob.EmbeddedJetty;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JacobFilter 負荷テスト.
+ * <pre>
+ * 組込み Jetty で {@link LoadTestApplication} を JacobFilter で起動し、{@link LoadGenerator} で負荷をかけて
+ * target/loadtest/[load.name].hgrm（応答時間）と [load.name]-service.hgrm（service time）を出力する。
+ * 通常の mvn test では実行せず、-Ploadtest で実行する。
+ *
+ *   mvn -Ploadtest test -Dload.path=/load/lookup -Dload.rate=5000 -Dload.seconds=30 -Dload.connections=32
+ *       -Dload.name=trace -Dload.initParams=traceThreshold=100,timeout=1000
+ *
+ * システムプロパティ
+ *   load.path        URI（デフォルト /load/lookup）
+ *   load.rate        1秒当たりのリクエスト数（デフォルト 1000）
+ *   load.seconds     実行秒数（デフォルト 10）
+ *   load.warmup      計測前のウォームアップ秒数（デフォルト 3）
+ *   load.connections 接続数（デフォルト 16）
+ *   load.name        出力ファイル名（デフォルト default）
+ *   load.initParams  JacobFilter の init-param、name=value のカンマ区切り
+ * </pre>
+ */
+public class JacobFilterLoadTest{
+	private EmbeddedJetty jetty;
+
+	@Before
+	public void start() throws Exception{
+		int connections = Integer.getInteger("load.connections", 16);
+		// HttpURLConnection の keep-alive 接続数の上限（デフォルト 5）を接続数に合わせる
+		System.setProperty("http.maxConnections", Integer.toString(connections));
+		Map<String, String> params = new HashMap<String, String>();
+		String initParams = System.getProperty("load.initParams", "");
+		for(String param:initParams.split(",")){
+			int i = param.indexOf('=');
+			if (i > 0) params.put(param.substring(0, i).trim(), param.substring(i + 1).trim());
+		}
+		jetty = new EmbeddedJetty().addFilter("load", "/*", LoadTestApplication.class, params);
+		jetty.start();
+	}
+
+	@After
+	public void stop() throws Exception{
+		jetty.stop();
+	}
+
+	@Test
+	public void load() throws Exception{
+		URL url = jetty.url(System.getProperty("load.path", "/load/lookup"));
+		int rate = Integer.getInteger("load.rate", 1000);
+		int connections = Integer.getInteger("load.connections", 16);
+		int warmup = Integer.getInteger("load.warmup", 3);
+		if (warmup > 0){
+			new LoadGenerator(url, "GET", null, rate, warmup, connections).run();
+		}
+		LoadGenerator generator = new LoadGenerator(url, "GET", null, rate, Integer.getInteger("load.seconds", 10), connections);
+		generator.run();
+
+		File dir = new File("target/loadtest");
+		dir.mkdirs();
+		String name = System.getProperty("load.name", "default");
+		try(PrintStream out = new PrintStream(new File(dir, name + ".hgrm"), "UTF-8")){
+			LoadGenerator.writeHgrm(generator.getResponseTime(), out);
+		}
+		try(PrintStream out = new PrintStream(new File(dir, name + "-service.hgrm"), "UTF-8")){
+			LoadGenerator.writeHgrm(generator.getServiceTime(), out);
+		}
+		System.out.println(url + "  requests = " + generator.getResponseTime().getTotalCount() + "  errors = " + generator.getErrorCount()
+			+ "  p50 = " + generator.getResponseTime().getValueAtPercentile(50.0) / 1000.0 + "ms"
+			+ "  p99 = " + generator.getResponseTime().getValueAtPercentile(99.0) / 1000.0 + "ms"
+			+ "  max = " + generator.getResponseTime().getMaxValue() / 1000.0 + "ms");
+		assertTrue(generator.getResponseTime().getTotalCount() > 0);
+		assertEquals(0L, generator.getErrorCount());
+	}
+}
@@ -0,0 +1,147 @@
+package org.jacob.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * 負荷生成. LoadGenerator
+ * <pre>
+ * URL に対して、一定の到着レート（オープンループ）で HTTP リクエストを送り、応答時間を HdrHistogram に記録する。
+ * 応答時間は、実際に送信した時刻ではなく予定した送信時刻から計測するので、
+ * 応答が遅れて送信が詰まった分も含まれる（Coordinated Omission の補正）。
+ * 参考として、実際の送信からの時間（service time）も記録する。
+ * 接続は HttpURLConnection の keep-alive で再利用される。
+ * 値はマイクロ秒で記録し、.hgrm はミリ秒で出力する。
+ * </pre>
+ */
+public final class LoadGenerator{
+	private final URL url;
+	private final String method;
+	private final byte[] body;
+	private final long intervalNanos;
+	private final long durationNanos;
+	private final int connections;
+	private final Histogram responseTime = new ConcurrentHistogram(3);
+	private final Histogram serviceTime = new ConcurrentHistogram(3);
+	private final LongAdder errors = new LongAdder();
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * コンストラクタ.
+	 * @param url リクエストURL
+	 * @param method HTTPメソッド
+	 * @param body リクエストボディ、null の場合は送信しない。
+	 * @param rate 1秒当たりのリクエスト数
+	 * @param seconds 実行秒数
+	 * @param connections 接続数（送信スレッド数）
+	 */
+	public LoadGenerator(URL url, String method, byte[] body, int rate, int seconds, int connections){
+		if (rate < 1 || seconds < 1 || connections < 1){
+			throw new IllegalArgumentException("rate = " + rate + ", seconds = " + seconds + ", connections = " + connections);
+		}
+		this.url = url;
+		this.method = method.toUpperCase();
+		this.body = body;
+		this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+		this.connections = connections;
+	}
+
+	/**
+	 * 負荷生成の実行.
+	 * <pre>実行秒数の間リクエストを送り、全ての応答を待って終了する。</pre>
+	 * @throws InterruptedException 中断された場合
+	 */
+	public void run() throws InterruptedException{
+		long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i=0; i < connections; i++){
+			Thread t = new Thread(()->send(start), "jacob-load-" + (i + 1));
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+		for(Thread t:threads){
+			t.join();
+		}
+	}
+	private void send(long start){
+		byte[] buf = new byte[8192];
+		while(!Thread.currentThread().isInterrupted()){
+			long intended = start + sequence.getAndIncrement() * intervalNanos;
+			if (intended - start >= durationNanos) return;
+			long wait;
+			while((wait = intended - System.nanoTime()) > 0){
+				LockSupport.parkNanos(wait);
+			}
+			long begin = System.nanoTime();
+			try{
+				HttpURLConnection con = (HttpURLConnection)url.openConnection();
+				con.setRequestMethod(method);
+				if (body != null){
+					con.setDoOutput(true);
+					con.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+					con.setFixedLengthStreamingMode(body.length);
+					try(OutputStream out = con.getOutputStream()){
+						out.write(body);
+					}
+				}
+				int status = con.getResponseCode();
+				try(InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream()){
+					if (in != null){
+						while(in.read(buf) >= 0);
+					}
+				}
+				if (status >= 400) errors.increment();
+			}catch(IOException e){
+				errors.increment();
+			}
+			long end = System.nanoTime();
+			responseTime.recordValue(TimeUnit.NANOSECONDS.toMicros(end - intended));
+			serviceTime.recordValue(TimeUnit.NANOSECONDS.toMicros(end - begin));
+		}
+	}
+
+	/**
+	 * 応答時間（Coordinated Omission 補正済、マイクロ秒）
+	 * @return Histogram
+	 */
+	public Histogram getResponseTime(){
+		return responseTime;
+	}
+	/**
+	 * 実際の送信からの応答時間（マイクロ秒）
+	 * @return Histogram
+	 */
+	public Histogram getServiceTime(){
+		return serviceTime;
+	}
+	/**
+	 * エラー件数.
+	 * @return HTTP status 400 以上、または通信エラーの件数
+	 */
+	public long getErrorCount(){
+		return errors.sum();
+	}
+	/**
+	 * 応答時間の .hgrm 出力.
+	 * @param histogram getResponseTime() または getServiceTime()
+	 * @param out 出力先
+	 */
+	public static void writeHgrm(Histogram histogram, PrintStream out){
+		histogram.outputPercentileDistribution(out, 1000.0);
+	}
+}
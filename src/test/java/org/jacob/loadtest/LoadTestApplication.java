@@ -0,0 +1,48 @@
+package org.jacob.loadtest;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jacob.Bulkhead;
+import org.jacob.JacobApplication;
+import org.jacob.JsonResponder;
+import org.jacob.RequestTranslater;
+
+/**
+ * 負荷テスト用 JacobApplication.
+ * <pre>
+ * /load/lookup : Webコンテナのスレッドで即座に応答する軽いURI
+ * /load/export : バルクヘッド "export" で 5ミリ秒かけて応答する重いURI
+ * </pre>
+ */
+public class LoadTestApplication extends JacobApplication{
+	@Override
+	public JsonResponder init(){
+		RequestTranslater translater = getRequestTranslater();
+		translater.addBulkhead("export", 4, 1000);
+		translater.add("/load/lookup", LookupResponder.class);
+		translater.add("/load/export", ExportResponder.class);
+		return translater;
+	}
+
+	/** 軽いURI */
+	public static class LookupResponder implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			return "{\"id\":1,\"name\":\"lookup\"}";
+		}
+	}
+
+	/** 重いURI */
+	@Bulkhead("export")
+	public static class ExportResponder implements JsonResponder{
+		@Override
+		public String answer(HttpServletRequest request){
+			try{
+				Thread.sleep(5);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			return "{\"exported\":true}";
+		}
+	}
+}